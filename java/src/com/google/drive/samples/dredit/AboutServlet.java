@@ -38,10 +38,12 @@ public class AboutServlet extends DrEditServlet {
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
-    Drive service = getDriveService(getCredential(req, resp));
+    Drive service = getDriveService(req, resp);
     try {
-    	About about = service.about().get().execute();
-    	sendJson(resp, about);
+    	About about = getAbout(getUserId(req), service);
+    	if (!checkNotModified(req, resp, about.getEtag())) {
+    	  sendJson(resp, about);
+    	}
     } catch (GoogleJsonResponseException e) {
       if (e.getStatusCode() == 401) {
         // The user has revoked our token or it is otherwise bad.
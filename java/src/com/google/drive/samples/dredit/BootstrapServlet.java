@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.oauth2.Oauth2;
+import com.google.api.services.oauth2.model.Userinfo;
+import com.google.drive.samples.dredit.model.ClientFile;
+import com.google.drive.samples.dredit.model.ClientFileWriter;
+import com.google.drive.samples.dredit.model.DrEditGson;
+import com.google.gson.Gson;
+
+/**
+ * Servlet that returns everything the DrEdit JavaScript client loads on
+ * start in one response: the profile of the user, Drive's About feed and,
+ * given a {@code file_id} URI parameter, the file to edit. The upstream
+ * calls are made in parallel with the credentials looked up once. The file
+ * is opened through the file cache of the {@link FileServlet}, like /svc.
+ */
+@SuppressWarnings("serial")
+public class BootstrapServlet extends DrEditServlet {
+  /**
+   * Returns a JSON object with {@code user}, {@code about} and optionally
+   * {@code file} fields, as returned by /user, /about and /svc.
+   */
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    final String userId = getUserId(req);
+    Credential credential = getCredential(req, resp);
+    final Oauth2 oauth2 = getOauth2Service(userId, credential);
+    final Drive drive = getDriveService(userId, credential);
+    String fileId = req.getParameter("file_id");
+
+    UpstreamExecutor executor = UpstreamExecutor.create("dredit-bootstrap", 2);
+    File file = null;
+    byte[] cachedContent = null;
+    HttpResponse content = null;
+    try {
+      Future<Userinfo> user = executor.submit(new Callable<Userinfo>() {
+        @Override
+        public Userinfo call() throws IOException {
+          return getUserinfo(userId, oauth2);
+        }
+      });
+      Future<About> about = executor.submit(new Callable<About>() {
+        @Override
+        public About call() throws IOException {
+          return getAbout(userId, drive);
+        }
+      });
+      if (fileId != null) {
+        SaveQueue saveQueue = (SaveQueue) getServletContext().getAttribute(
+            SaveQueue.ATTRIBUTE);
+        if (saveQueue != null && userId != null) {
+          // Read the user's own held save, if any.
+          saveQueue.flush(userId, fileId);
+        }
+        FileLoader fileLoader = (FileLoader) getServletContext().getAttribute(
+            FileLoader.ATTRIBUTE);
+        if (fileLoader != null) {
+          FileCache.Entry entry = fileLoader.load(drive, fileId, userId);
+          file = entry.file;
+          cachedContent = entry.content;
+        } else {
+          file = drive.files().get(fileId).setFields(FieldMasks.FILE)
+              .execute();
+        }
+        if (cachedContent == null) {
+          content = downloadFileContent(drive, file);
+        }
+      }
+      InputStream fileContent = null;
+      if (cachedContent != null) {
+        fileContent = new ByteArrayInputStream(cachedContent);
+      } else if (content != null) {
+        fileContent = content.getContent();
+      }
+      sendBootstrap(resp, get(user), get(about), file, fileContent);
+    } catch (GoogleJsonResponseException e) {
+      if (e.getStatusCode() == 401) {
+        // The user has revoked our token or it is otherwise bad.
+        // Delete the local copy so that their next page load will recover.
+        deleteCredential(req, resp);
+      }
+      sendGoogleJsonResponseError(resp, e);
+    } finally {
+      if (content != null) {
+        content.disconnect();
+      }
+      executor.close();
+    }
+  }
+
+  /**
+   * Responds with the JSON representation of the given objects, streaming
+   * the content of the file from the given stream.
+   */
+  private void sendBootstrap(HttpServletResponse resp, Userinfo user,
+      About about, File file, InputStream content) throws IOException {
+    Gson gson = DrEditGson.get();
+    resp.setContentType("application/json");
+    Writer out = resp.getWriter();
+    out.write("{\"user\":");
+    gson.toJson(user, out);
+    out.write(",\"about\":");
+    gson.toJson(about, out);
+    if (file != null) {
+      out.write(",\"file\":");
+      new ClientFileWriter(gson).write(new ClientFile(file, null), content,
+          out);
+    }
+    out.write('}');
+  }
+
+  /**
+   * Waits for the given upstream call and returns its result.
+   */
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while bootstrapping");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
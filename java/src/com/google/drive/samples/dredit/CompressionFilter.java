@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Filter compressing JSON responses with gzip or deflate, as negotiated with
+ * the Accept-Encoding header of the request. Responses are buffered up to a
+ * size threshold; smaller responses are sent as is, larger ones are
+ * compressed as they are streamed.
+ */
+public class CompressionFilter implements Filter {
+  /**
+   * Name of the init parameter setting the size, in bytes, from which
+   * responses are compressed.
+   */
+  public static final String PARAM_THRESHOLD = "threshold";
+
+  /**
+   * Name of the init parameter setting the compression level, from 1 (fastest)
+   * to 9 (smallest).
+   */
+  public static final String PARAM_LEVEL = "level";
+
+  /**
+   * Size, in bytes, from which responses are compressed.
+   */
+  private int threshold = 1024;
+
+  /**
+   * Compression level.
+   */
+  private int level = Deflater.DEFAULT_COMPRESSION;
+
+  @Override
+  public void init(FilterConfig config) throws ServletException {
+    String value = config.getInitParameter(PARAM_THRESHOLD);
+    if (value != null) {
+      threshold = Integer.parseInt(value.trim());
+    }
+    value = config.getInitParameter(PARAM_LEVEL);
+    if (value != null) {
+      level = Integer.parseInt(value.trim());
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest req = (HttpServletRequest) request;
+    HttpServletResponse resp = (HttpServletResponse) response;
+    resp.addHeader("Vary", "Accept-Encoding");
+    String encoding = negotiate(req.getHeader("Accept-Encoding"));
+    if (encoding == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+    CompressingResponse wrapper = new CompressingResponse(resp, encoding);
+    chain.doFilter(request, wrapper);
+    wrapper.finish();
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  /**
+   * Picks the content coding to respond with, preferring gzip over deflate.
+   * @param acceptEncoding Accept-Encoding header of the request.
+   * @return "gzip", "deflate" or null if neither is accepted.
+   */
+  static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    boolean deflate = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      if (parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?")) {
+        continue;
+      }
+      if (name.equals("gzip")) {
+        return "gzip";
+      } else if (name.equals("deflate")) {
+        deflate = true;
+      }
+    }
+    return deflate ? "deflate" : null;
+  }
+
+  /**
+   * Response wrapper routing the body through a {@link CompressingStream}.
+   */
+  private class CompressingResponse extends HttpServletResponseWrapper {
+    private final String encoding;
+    private CompressingStream stream = null;
+    private PrintWriter writer = null;
+
+    CompressingResponse(HttpServletResponse response, String encoding) {
+      super(response);
+      this.encoding = encoding;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() has already been called");
+      }
+      return getStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        if (stream != null) {
+          throw new IllegalStateException(
+              "getOutputStream() has already been called");
+        }
+        writer = new PrintWriter(new OutputStreamWriter(getStream(),
+            getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    @Override
+    public void setContentLength(int length) {
+      // The length is only known once the body is written.
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      if (stream != null) {
+        stream.flush();
+      }
+    }
+
+    @Override
+    public void reset() {
+      super.reset();
+      stream = null;
+      writer = null;
+    }
+
+    private CompressingStream getStream() {
+      if (stream == null) {
+        stream = new CompressingStream((HttpServletResponse) getResponse(),
+            encoding);
+      }
+      return stream;
+    }
+
+    /**
+     * Writes what is left of the body.
+     */
+    void finish() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      if (stream != null) {
+        stream.close();
+      }
+    }
+  }
+
+  /**
+   * Output stream buffering the body until it reaches the threshold, then
+   * compressing it straight into the response.
+   */
+  private class CompressingStream extends ServletOutputStream {
+    private final HttpServletResponse response;
+    private final String encoding;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream out = null;
+    private Deflater deflater = null;
+    private boolean closed = false;
+
+    CompressingStream(HttpServletResponse response, String encoding) {
+      this.response = response;
+      this.encoding = encoding;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream is closed");
+      }
+      if (out != null) {
+        out.write(b, off, len);
+        return;
+      }
+      buffer.write(b, off, len);
+      if (buffer.size() >= threshold) {
+        startOutput(isCompressible());
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      // Small buffered bodies are only written on close, so that their size
+      // is known before deciding to compress them.
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      if (out == null) {
+        response.setContentLength(buffer.size());
+        startOutput(false);
+      }
+      closed = true;
+      out.close();
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+
+    private boolean isCompressible() {
+      String type = response.getContentType();
+      return type != null
+          && (type.startsWith("application/json") || type.startsWith("text/"));
+    }
+
+    /**
+     * Switches from buffering to writing to the response, compressed or not.
+     */
+    private void startOutput(boolean compress) throws IOException {
+      OutputStream raw = response.getOutputStream();
+      if (!compress) {
+        out = raw;
+      } else if (encoding.equals("gzip")) {
+        response.setHeader("Content-Encoding", "gzip");
+        out = new GZIPOutputStream(raw, 8192, true) {
+          {
+            def.setLevel(level);
+          }
+        };
+      } else {
+        response.setHeader("Content-Encoding", "deflate");
+        deflater = new Deflater(level);
+        out = new DeflaterOutputStream(raw, deflater, 8192, true);
+      }
+      buffer.writeTo(out);
+      buffer = null;
+    }
+  }
+}
@@ -2,9 +2,14 @@ package com.google.drive.samples.dredit;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialStore;
+import com.google.api.client.auth.oauth2.CredentialStoreRefreshListener;
 import com.google.api.client.extensions.appengine.auth.oauth2.AppEngineCredentialStore;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeRequestUrl;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeTokenRequest;
@@ -13,6 +18,8 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * Credential manager to get, save, delete user credentials.
@@ -46,11 +53,29 @@ public class CredentialManager {
       "https://www.googleapis.com/auth/userinfo.email",
       "https://www.googleapis.com/auth/userinfo.profile");
 
+  /**
+   * Maximum number of credentials kept in memory.
+   */
+  public static final long CACHE_MAXIMUM_SIZE = 1000;
+
+  /**
+   * Minutes after which a credential kept in memory is loaded again from the
+   * credential store.
+   */
+  public static final long CACHE_TTL_MINUTES = 10;
+
   /**
    * Credential store to get, save, delete user credentials.
    */
-  private static AppEngineCredentialStore credentialStore =
-      new AppEngineCredentialStore();
+  private CredentialStore credentialStore;
+
+  /**
+   * In-memory cache in front of the credential store, keyed by user id.
+   */
+  private Cache<String, Credential> credentialCache = CacheBuilder.newBuilder()
+      .maximumSize(CACHE_MAXIMUM_SIZE)
+      .expireAfterWrite(CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+      .build();
 
   /**
    * Credential Manager constructor.
@@ -60,9 +85,24 @@ public class CredentialManager {
    */
   public CredentialManager(GoogleClientSecrets clientSecrets,
       HttpTransport transport, JsonFactory factory) {
+    this(clientSecrets, transport, factory, new AppEngineCredentialStore());
+  }
+
+  /**
+   * Credential Manager constructor.
+   * @param clientSecrets App client secrets to be used during OAuth2 exchanges.
+   * @param transport Transportation layer for OAuth2 client.
+   * @param factory JSON factory for OAuth2 client.
+   * @param credentialStore Store to persist user credentials in, e.g. a
+   *        MemoryCredentialStore to run without the App Engine datastore.
+   */
+  public CredentialManager(GoogleClientSecrets clientSecrets,
+      HttpTransport transport, JsonFactory factory,
+      CredentialStore credentialStore) {
     this.clientSecrets = clientSecrets;
     this.transport = transport;
     this.jsonFactory = factory;
+    this.credentialStore = credentialStore;
   }
 
   /**
@@ -77,16 +117,41 @@ public class CredentialManager {
         .build();
   }
 
+  /**
+   * Builds an empty credential object of the given user, which saves its
+   * tokens to the credential store whenever they are refreshed.
+   * @param userId The id of the user.
+   * @return An empty credential object.
+   */
+  private Credential buildEmpty(String userId) {
+    return new GoogleCredential.Builder()
+        .setClientSecrets(this.clientSecrets)
+        .setTransport(transport)
+        .setJsonFactory(jsonFactory)
+        .addRefreshListener(
+            new CredentialStoreRefreshListener(userId, credentialStore))
+        .build();
+  }
+
   /**
    * Returns credentials of the given user, returns null if there are none.
    * @param userId The id of the user.
    * @return A credential object or null.
    */
   public Credential get(String userId) {
-    Credential credential = buildEmpty();
-    if (credentialStore.load(userId, credential)) {
+    Credential credential = credentialCache.getIfPresent(userId);
+    if (credential != null) {
       return credential;
     }
+    credential = buildEmpty(userId);
+    try {
+      if (credentialStore.load(userId, credential)) {
+        credentialCache.put(userId, credential);
+        return credential;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Can't load credentials of " + userId);
+    }
     return null;
   }
 
@@ -96,7 +161,16 @@ public class CredentialManager {
    * @param credential A credential object to save.
    */
   public void save(String userId, Credential credential) {
-    credentialStore.store(userId, credential);
+    try {
+      credentialStore.store(userId, credential);
+    } catch (IOException e) {
+      throw new RuntimeException("Can't save credentials of " + userId);
+    }
+    credentialCache.put(userId, buildEmpty(userId)
+        .setAccessToken(credential.getAccessToken())
+        .setRefreshToken(credential.getRefreshToken())
+        .setExpirationTimeMilliseconds(
+            credential.getExpirationTimeMilliseconds()));
   }
 
   /**
@@ -104,7 +178,22 @@ public class CredentialManager {
    * @param userId The id of the user.
    */
   public void delete(String userId) {
-    credentialStore.delete(userId, get(userId));
+    Credential credential = get(userId);
+    credentialCache.invalidate(userId);
+    try {
+      credentialStore.delete(userId, credential);
+    } catch (IOException e) {
+      throw new RuntimeException("Can't delete credentials of " + userId);
+    }
+  }
+
+  /**
+   * Returns the credentials of the users who were active recently, keyed by
+   * user id.
+   * @return Read-only view of the credentials kept in memory.
+   */
+  public Map<String, Credential> getActiveCredentials() {
+    return Collections.unmodifiableMap(credentialCache.asMap());
   }
 
   /**
@@ -135,11 +224,13 @@ public class CredentialManager {
           clientSecrets.getWeb().getClientSecret(),
           code,
           clientSecrets.getWeb().getRedirectUris().get(0)).execute();
-      return buildEmpty().setAccessToken(response.getAccessToken());
+      // Keep the refresh token and expiry, so that the access token can be
+      // refreshed before it expires.
+      return buildEmpty().setFromTokenResponse(response);
     } catch (IOException e) {
-      new RuntimeException("An unknown problem occured while retrieving token");
+      throw new RuntimeException(
+          "An unknown problem occured while retrieving token");
     }
-    return null;
   }
 }
 
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+
+/**
+ * Sets up the objects shared by all DrEdit servlets once per application,
+ * when it starts: client secrets are parsed and the credential manager,
+ * profile cache and upstream executors are built before the first request.
+ * Background threads are stopped when the application stops.
+ */
+public class DrEditContextListener implements ServletContextListener {
+  /**
+   * Name of the context parameter setting how many seconds a user's profile
+   * is cached for.
+   */
+  public static final String PARAM_USERINFO_TTL = "userinfoTtl";
+
+  /**
+   * Name of the context parameter setting how many seconds a user's Drive
+   * About feed is cached for.
+   */
+  public static final String PARAM_ABOUT_TTL = "aboutTtl";
+
+  /**
+   * Name of the context parameter setting how upstream calls made in
+   * parallel are run: "request" runs them on threads of each request,
+   * "shared" on a pool shared by all requests.
+   */
+  public static final String PARAM_UPSTREAM_EXECUTOR = "upstreamExecutor";
+
+  /**
+   * Name of the context parameter setting the size of the shared pool of
+   * upstream calls.
+   */
+  public static final String PARAM_UPSTREAM_THREADS = "upstreamThreads";
+
+  /**
+   * Name of the context parameter setting how many seconds apart access
+   * tokens about to expire are refreshed in the background; 0 disables it.
+   */
+  public static final String PARAM_TOKEN_REFRESH_INTERVAL =
+      "tokenRefreshInterval";
+
+  /**
+   * Name of the context parameter setting the maximum number of retries of
+   * a throttled or failed upstream request.
+   */
+  public static final String PARAM_UPSTREAM_MAX_RETRIES =
+      "upstreamMaxRetries";
+
+  /**
+   * Name of the context parameter setting the backoff, in milliseconds, of
+   * the first retry of an upstream request.
+   */
+  public static final String PARAM_UPSTREAM_RETRY_BACKOFF =
+      "upstreamRetryBackOff";
+
+  /**
+   * Name of the context parameter setting how many retries are allowed per
+   * 100 upstream requests.
+   */
+  public static final String PARAM_UPSTREAM_RETRY_PERCENT =
+      "upstreamRetryPercent";
+
+  /**
+   * Name of the context parameter setting the maximum upstream requests per
+   * second of an instance; 0 disables the limit.
+   */
+  public static final String PARAM_UPSTREAM_RATE = "upstreamRate";
+
+  /**
+   * Name of the context parameter setting the maximum upstream requests per
+   * second of a user, 10 by default as the Drive quota; 0 disables the
+   * limit.
+   */
+  public static final String PARAM_UPSTREAM_USER_RATE = "upstreamUserRate";
+
+  /**
+   * Name of the context parameter setting the milliseconds an upstream
+   * request waits for the rate limits before failing.
+   */
+  public static final String PARAM_UPSTREAM_RATE_WAIT = "upstreamRateWait";
+
+  /**
+   * Name of the context attribute holding the credential manager.
+   */
+  private static final String ATTR_CREDENTIAL_MANAGER =
+      DrEditContextListener.class.getName() + ".credentialManager";
+
+  /**
+   * Name of the context attribute holding the profile cache.
+   */
+  private static final String ATTR_PROFILE_CACHE =
+      DrEditContextListener.class.getName() + ".profileCache";
+
+  /**
+   * Background refresher of the access tokens of active users, or null if
+   * disabled.
+   */
+  private TokenRefresher tokenRefresher = null;
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    ServletContext context = event.getServletContext();
+    // Parsing the secrets also loads the JSON factory and transport classes.
+    CredentialManager credentialManager = new CredentialManager(
+        getClientSecrets(context), DrEditServlet.TRANSPORT,
+        DrEditServlet.JSON_FACTORY);
+    context.setAttribute(ATTR_CREDENTIAL_MANAGER, credentialManager);
+    context.setAttribute(ATTR_PROFILE_CACHE, new ProfileCache(1000,
+        getIntParameter(context, PARAM_USERINFO_TTL, 3600),
+        getIntParameter(context, PARAM_ABOUT_TTL, 300)));
+
+    String mode = context.getInitParameter(PARAM_UPSTREAM_EXECUTOR);
+    UpstreamExecutor.configure(
+        mode != null ? mode.trim() : UpstreamExecutor.MODE_REQUEST,
+        getIntParameter(context, PARAM_UPSTREAM_THREADS, 64));
+    UpstreamPolicy.configure(new UpstreamPolicy(DrEditServlet.JSON_FACTORY,
+        getIntParameter(context, PARAM_UPSTREAM_MAX_RETRIES, 3),
+        getIntParameter(context, PARAM_UPSTREAM_RETRY_BACKOFF, 500),
+        30000,
+        getIntParameter(context, PARAM_UPSTREAM_RETRY_PERCENT, 10),
+        getIntParameter(context, PARAM_UPSTREAM_RATE, 0),
+        getIntParameter(context, PARAM_UPSTREAM_USER_RATE, 10),
+        getIntParameter(context, PARAM_UPSTREAM_RATE_WAIT, 10000)));
+
+    int refreshInterval =
+        getIntParameter(context, PARAM_TOKEN_REFRESH_INTERVAL, 0);
+    if (refreshInterval > 0) {
+      // Refresh tokens expiring within the next interval and the minute
+      // before expiry at which requests refresh them themselves.
+      tokenRefresher = new TokenRefresher(credentialManager,
+          refreshInterval + 60, 60, 100);
+      tokenRefresher.start(refreshInterval,
+          ThreadFactories.background("dredit-refresh"));
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    if (tokenRefresher != null) {
+      tokenRefresher.stop();
+      tokenRefresher = null;
+    }
+    UpstreamExecutor.configure(UpstreamExecutor.MODE_REQUEST, 0);
+    ServletContext context = event.getServletContext();
+    context.removeAttribute(ATTR_CREDENTIAL_MANAGER);
+    context.removeAttribute(ATTR_PROFILE_CACHE);
+  }
+
+  /**
+   * Returns the credential manager of the application.
+   * @param context Context of the application.
+   * @return Credential manager shared by all servlets.
+   */
+  public static CredentialManager getCredentialManager(ServletContext context) {
+    return (CredentialManager) getAttribute(context, ATTR_CREDENTIAL_MANAGER);
+  }
+
+  /**
+   * Returns the cache of user profiles and About feeds of the application.
+   * @param context Context of the application.
+   * @return Profile cache shared by all servlets.
+   */
+  public static ProfileCache getProfileCache(ServletContext context) {
+    return (ProfileCache) getAttribute(context, ATTR_PROFILE_CACHE);
+  }
+
+  private static Object getAttribute(ServletContext context, String name) {
+    Object value = context.getAttribute(name);
+    if (value == null) {
+      throw new RuntimeException(DrEditContextListener.class.getName()
+          + " is not registered as a listener in web.xml");
+    }
+    return value;
+  }
+
+  /**
+   * Reads client_secrets.json and creates a GoogleClientSecrets object.
+   * @return A GoogleClientsSecrets object.
+   */
+  private static GoogleClientSecrets getClientSecrets(ServletContext context) {
+    InputStream stream = context.getResourceAsStream(
+        DrEditServlet.CLIENT_SECRETS_FILE_PATH);
+    if (stream == null) {
+      throw new RuntimeException("No client_secrets.json found");
+    }
+    try {
+      return GoogleClientSecrets.load(DrEditServlet.JSON_FACTORY, stream);
+    } catch (IOException e) {
+      throw new RuntimeException("Can't parse client_secrets.json");
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // Nothing left to read.
+      }
+    }
+  }
+
+  /**
+   * Returns the value of the given context parameter as an integer.
+   * @param context Context of the application.
+   * @param name  Name of the context parameter.
+   * @param defaultValue  Value to return if the parameter is not set.
+   * @return      Value of the context parameter or the default value.
+   */
+  private static int getIntParameter(ServletContext context, String name,
+      int defaultValue) {
+    String value = context.getInitParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Context parameter " + name
+          + " must be an integer");
+    }
+  }
+}
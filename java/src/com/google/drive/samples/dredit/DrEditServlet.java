@@ -14,8 +14,16 @@
 
 package com.google.drive.samples.dredit;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -23,16 +31,20 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.File;
 import com.google.api.services.oauth2.Oauth2;
 import com.google.api.services.oauth2.model.Userinfo;
-import com.google.gson.Gson;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.drive.samples.dredit.model.DrEditGson;
 
 /**
  * Abstract servlet that sets up credentials and provides some convenience
@@ -44,15 +56,23 @@ import com.google.gson.Gson;
 @SuppressWarnings("serial")
 public abstract class DrEditServlet extends HttpServlet {
   /**
-   * Default transportation layer for Google Apis Java client.
+   * Default transportation layer for Google Apis Java client, selected and
+   * tuned with the dredit.transport system properties.
    */
-  protected static final HttpTransport TRANSPORT = new NetHttpTransport();
+  protected static final HttpTransport TRANSPORT = Transports.create();
   
   /**
    * Default JSON factory for Google Apis Java client.
    */
   protected static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
+  /**
+   * Built Drive and Oauth2 service objects shared by all servlets, keyed by
+   * user id.
+   */
+  private static final ServiceCache SERVICE_CACHE =
+      new ServiceCache(TRANSPORT, JSON_FACTORY, 1000, 30);
+
   /**
    * Key to get/set userId from and to the session.
    */
@@ -70,6 +90,11 @@ public abstract class DrEditServlet extends HttpServlet {
   public static final String CLIENT_SECRETS_FILE_PATH
       = "/WEB-INF/client_secrets.json";
 
+  /**
+   * Cache of user profiles and About feeds.
+   */
+  private ProfileCache profileCache = null;
+
   /**
    * A credential manager to get, set, delete credential objects.
    */
@@ -81,9 +106,87 @@ public abstract class DrEditServlet extends HttpServlet {
   @Override
   public void init() throws ServletException {
     super.init();
-    // init credential manager
-    credentialManager = new CredentialManager(
-        getClientSecrets(), TRANSPORT, JSON_FACTORY);
+    credentialManager =
+        DrEditContextListener.getCredentialManager(getServletContext());
+    profileCache = DrEditContextListener.getProfileCache(getServletContext());
+  }
+
+  /**
+   * Returns the value of the given init parameter as an integer.
+   * @param name  Name of the init parameter.
+   * @param defaultValue  Value to return if the parameter is not set.
+   * @return      Value of the init parameter or the default value.
+   */
+  protected int getIntInitParameter(String name, int defaultValue) {
+    String value = getInitParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Init parameter " + name
+          + " must be an integer");
+    }
+  }
+
+  /**
+   * Returns a reader of the request body, decompressing it as it is read if
+   * it was sent with a gzip or deflate Content-Encoding. Responds with HTTP
+   * 415 if the body uses another encoding, and with HTTP 413 or 400 if it is
+   * known to be too large or corrupt before anything is read. Reading the
+   * returned reader throws a {@link RequestBodyException} once more than
+   * {@code maxSize} bytes are read from the body after decompression, or if
+   * the compressed stream turns out to be corrupt.
+   * @param req   Request object.
+   * @param resp  Response object.
+   * @param maxSize Largest accepted body size, in bytes, once decompressed.
+   * @return      Reader of the request body, or null if an error was sent.
+   * @throws IOException
+   */
+  protected Reader getRequestReader(HttpServletRequest req,
+      HttpServletResponse resp, long maxSize) throws IOException {
+    if (req.getContentLength() > maxSize) {
+      sendError(resp, 413, "Request body is larger than " + maxSize
+          + " bytes.");
+      return null;
+    }
+    String encoding = req.getHeader("Content-Encoding");
+    InputStream in;
+    if (encoding == null || encoding.trim().equalsIgnoreCase("identity")) {
+      in = req.getInputStream();
+    } else {
+      encoding = encoding.trim().toLowerCase();
+      try {
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+          in = new GZIPInputStream(req.getInputStream(), 8192);
+        } else if (encoding.equals("deflate")) {
+          in = new InflaterInputStream(req.getInputStream());
+        } else {
+          sendError(resp, 415, "Unsupported Content-Encoding: " + encoding);
+          return null;
+        }
+      } catch (ZipException e) {
+        sendError(resp, 400, "Corrupt " + encoding + " request body.");
+        return null;
+      } catch (EOFException e) {
+        sendError(resp, 400, "Truncated " + encoding + " request body.");
+        return null;
+      }
+    }
+    String charset = req.getCharacterEncoding();
+    return new InputStreamReader(new BoundedBodyStream(in, maxSize),
+        charset != null ? charset : "UTF-8");
+  }
+
+  /**
+   * Responds with the HTTP status and message of a refused request body.
+   * @param resp  Response object.
+   * @param e     Exception thrown while reading the request body.
+   */
+  protected void sendRequestBodyError(HttpServletResponse resp,
+      RequestBodyException e) {
+    sendError(resp, e.getStatusCode(), e.getMessage());
   }
 
   /**
@@ -94,14 +197,91 @@ public abstract class DrEditServlet extends HttpServlet {
    */
   protected void sendJson(HttpServletResponse resp, int code, Object obj) {
     try {
-      // TODO(burcud): Initialize Gson instance for once.
       resp.setContentType("application/json");
-      resp.getWriter().print(new Gson().toJson(obj).toString());
+      DrEditGson.get().toJson(obj, resp.getWriter());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Dumps the given object to JSON and responds with HTTP 200, using a hash
+   * of the JSON as the ETag of the response. Responds with HTTP 304 and no
+   * body if the client already has that JSON.
+   * @param req   Request object.
+   * @param resp  Response object.
+   * @param obj   An object to be dumped as JSON.
+   */
+  protected void sendJsonIfModified(HttpServletRequest req,
+      HttpServletResponse resp, Object obj) {
+    String json = DrEditGson.get().toJson(obj);
+    String hash = Hashing.md5().hashString(json, Charsets.UTF_8).toString();
+    if (checkNotModified(req, resp, hash)) {
+      return;
+    }
+    try {
+      resp.setContentType("application/json");
+      resp.getWriter().print(json);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Sets the ETag and Cache-Control headers of the response, then responds
+   * with HTTP 304 if the If-None-Match header of the request matches the
+   * ETag. Responses are private to the user and revalidated on every use.
+   * @param req   Request object.
+   * @param resp  Response object.
+   * @param version Opaque version of the response body, e.g. a Drive etag or
+   *        a content hash. No headers are set if it is null.
+   * @return      Whether HTTP 304 was sent, in which case the caller must not
+   *              write a body.
+   */
+  protected boolean checkNotModified(HttpServletRequest req,
+      HttpServletResponse resp, String version) {
+    if (version == null) {
+      return false;
+    }
+    resp.setHeader("ETag", toEtag(version));
+    resp.setHeader("Cache-Control", "private, no-cache");
+    if (matchesIfNoneMatch(req, version)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the If-None-Match header of the request matches the
+   * given version, i.e. whether the client already has it.
+   * @param req   Request object.
+   * @param version Opaque version of the response body, or null.
+   * @return      Whether the client sent the ETag of the version.
+   */
+  protected boolean matchesIfNoneMatch(HttpServletRequest req,
+      String version) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (version == null || ifNoneMatch == null) {
+      return false;
+    }
+    String etag = toEtag(version);
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(etag) || candidate.equals("*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String toEtag(String version) {
+    return "\"" + version.replace("\"", "") + "\"";
+  }
+
   /**
    * Dumps the given object to JSON and responds with HTTP 200.
    * @param resp  Response object.
@@ -169,7 +349,8 @@ public abstract class DrEditServlet extends HttpServlet {
       // request userinfo
       Oauth2 service = getOauth2Service(credential);
       try {
-        Userinfo about = service.userinfo().get().execute();
+        Userinfo about = service.userinfo().get()
+            .setFields(FieldMasks.USERINFO_ID).execute();
         String id = about.getId();
         credentialManager.save(id, credential);
         req.getSession().setAttribute(KEY_SESSION_USERID, id);
@@ -190,13 +371,22 @@ public abstract class DrEditServlet extends HttpServlet {
    */
   protected Credential getCredential(HttpServletRequest req,
       HttpServletResponse resp) {
-    String userId = (String) req.getSession().getAttribute(KEY_SESSION_USERID);
+    String userId = getUserId(req);
     if (userId != null) {
       return credentialManager.get(userId);
     }
     return null;
   }
 
+  /**
+   * Returns the id of the user in the session, or null if there is none.
+   * @param req   Request object.
+   * @return      Id of the user in session or null.
+   */
+  protected String getUserId(HttpServletRequest req) {
+    return (String) req.getSession().getAttribute(KEY_SESSION_USERID);
+  }
+
   /**
    * Deletes the credentials of the user in the session permanently and removes
    * the user from the session.
@@ -205,13 +395,142 @@ public abstract class DrEditServlet extends HttpServlet {
    */
   protected void deleteCredential(HttpServletRequest req,
       HttpServletResponse resp) {
-    String userId = (String) req.getSession().getAttribute(KEY_SESSION_USERID);
+    String userId = getUserId(req);
     if (userId != null) {
+      SERVICE_CACHE.invalidate(userId);
+      profileCache.invalidate(userId);
       credentialManager.delete(userId);
       req.getSession().removeAttribute(KEY_SESSION_USERID);
     }
   }
 
+  /**
+   * Returns the Drive service object of the user in the session, reusing the
+   * one built for the user's current access token if there is one.
+   * @param req   Request object.
+   * @param resp  Response object.
+   * @return Drive service object that is ready to make requests.
+   */
+  protected Drive getDriveService(HttpServletRequest req,
+      HttpServletResponse resp) {
+    return getDriveService(getUserId(req), getCredential(req, resp));
+  }
+
+  /**
+   * Returns the Oauth2 service object of the user in the session, reusing the
+   * one built for the user's current access token if there is one.
+   * @param req   Request object.
+   * @param resp  Response object.
+   * @return Oauth2 service object that is ready to make requests.
+   */
+  protected Oauth2 getOauth2Service(HttpServletRequest req,
+      HttpServletResponse resp) {
+    return getOauth2Service(getUserId(req), getCredential(req, resp));
+  }
+
+  /**
+   * Returns the Drive service object of the given user, reusing the one built
+   * for the user's current access token if there is one.
+   * @param userId The id of the user.
+   * @param credential Current credentials of the user.
+   * @return Drive service object that is ready to make requests.
+   */
+  protected Drive getDriveService(String userId, Credential credential) {
+    if (credential == null) {
+      return getDriveService(credential);
+    }
+    return SERVICE_CACHE.getDrive(userId, credential);
+  }
+
+  /**
+   * Returns the Oauth2 service object of the given user, reusing the one
+   * built for the user's current access token if there is one.
+   * @param userId The id of the user.
+   * @param credential Current credentials of the user.
+   * @return Oauth2 service object that is ready to make requests.
+   */
+  protected Oauth2 getOauth2Service(String userId, Credential credential) {
+    if (credential == null) {
+      return getOauth2Service(credential);
+    }
+    return SERVICE_CACHE.getOauth2(userId, credential);
+  }
+
+  /**
+   * Returns the profile of the given user, from the profile cache if it is
+   * fresh enough.
+   * @param userId The id of the user, or null.
+   * @param service Oauth2 service of the user.
+   * @return Profile of the user.
+   * @throws IOException Thrown if the profile cannot be fetched.
+   */
+  protected Userinfo getUserinfo(String userId, Oauth2 service)
+      throws IOException {
+    if (userId == null) {
+      return service.userinfo().get()
+          .setFields(FieldMasks.USERINFO).execute();
+    }
+    return profileCache.getUserinfo(userId, service);
+  }
+
+  /**
+   * Returns the Drive About feed of the given user, from the profile cache if
+   * it is fresh enough.
+   * @param userId The id of the user, or null.
+   * @param service Drive service of the user.
+   * @return About feed of the user.
+   * @throws IOException Thrown if the About feed cannot be fetched.
+   */
+  protected About getAbout(String userId, Drive service) throws IOException {
+    if (userId == null) {
+      return service.about().get()
+          .setFields(FieldMasks.ABOUT).execute();
+    }
+    return profileCache.getAbout(userId, service);
+  }
+
+  /**
+   * Download the content of the given file into memory.
+   *
+   * @param service Drive service to use for downloading.
+   * @param file File metadata object whose content to download.
+   * @return Content of the file, empty if it has no downloadable content.
+   * @throws IOException Thrown if the request fails for whatever reason.
+   */
+  protected byte[] downloadFileBytes(Drive service, File file)
+      throws IOException {
+    HttpResponse content = downloadFileContent(service, file);
+    if (content == null) {
+      return new byte[0];
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(
+          file.getFileSize() != null ? file.getFileSize().intValue() : 8192);
+      content.download(out);
+      return out.toByteArray();
+    } finally {
+      content.disconnect();
+    }
+  }
+
+  /**
+   * Download the content of the given file.
+   *
+   * @param service Drive service to use for downloading.
+   * @param file File metadata object whose content to download.
+   * @return Response whose content is the file body, or null if the file has
+   *         no downloadable content.
+   * @throws IOException Thrown if the request fails for whatever reason.
+   */
+  protected HttpResponse downloadFileContent(Drive service, File file)
+      throws IOException {
+    if (file.getDownloadUrl() == null) {
+      return null;
+    }
+    GenericUrl url = new GenericUrl(file.getDownloadUrl());
+    return service.getRequestFactory().buildGetRequest(url).execute();
+  }
+
   /**
    * Build and return a Drive service object based on given request parameters.
    * @param credential User credentials.
@@ -219,7 +538,8 @@ public abstract class DrEditServlet extends HttpServlet {
    *         there was a problem.
    */
   protected Drive getDriveService(Credential credential) {
-    return new Drive.Builder(TRANSPORT, JSON_FACTORY, credential).build();
+    return new Drive.Builder(TRANSPORT, JSON_FACTORY,
+        UpstreamPolicy.initializer(null, credential)).build();
   }
 
   /**
@@ -229,21 +549,62 @@ public abstract class DrEditServlet extends HttpServlet {
    *         there was a problem.
    */
   protected Oauth2 getOauth2Service(Credential credential) {
-    return new Oauth2.Builder(TRANSPORT, JSON_FACTORY, credential).build();
+    return new Oauth2.Builder(TRANSPORT, JSON_FACTORY,
+        UpstreamPolicy.initializer(null, credential)).build();
   }
 
   /**
-   * Reads client_secrets.json and creates a GoogleClientSecrets object.
-   * @return A GoogleClientsSecrets object.
+   * Request body stream failing with a {@link RequestBodyException} once more
+   * than a maximum number of bytes is read, so that a small compressed body
+   * cannot inflate into more memory than the largest accepted save. Corrupt
+   * or truncated compressed data is reported the same way.
    */
-  private GoogleClientSecrets getClientSecrets() {
-    // TODO: do not read on each request
-    InputStream stream =
-        getServletContext().getResourceAsStream(CLIENT_SECRETS_FILE_PATH);
-    try {
-      return GoogleClientSecrets.load(JSON_FACTORY, stream);
-    } catch (IOException e) {
-      throw new RuntimeException("No client_secrets.json found");
+  private static class BoundedBodyStream extends FilterInputStream {
+    private final long maxSize;
+    private long count = 0;
+
+    BoundedBodyStream(InputStream in, long maxSize) {
+      super(in);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n;
+      try {
+        n = in.read(b, off, len);
+      } catch (ZipException e) {
+        throw new RequestBodyException(400, "Corrupt request body: "
+            + e.getMessage());
+      } catch (EOFException e) {
+        throw new RequestBodyException(400, "Truncated request body.");
+      }
+      if (n > 0) {
+        count += n;
+        if (count > maxSize) {
+          throw new RequestBodyException(413, "Request body is larger than "
+              + maxSize + " bytes.");
+        }
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] b = new byte[(int) Math.min(n, 8192)];
+      int read = read(b, 0, b.length);
+      return read == -1 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
     }
   }
 }
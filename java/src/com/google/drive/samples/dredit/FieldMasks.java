@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+/**
+ * Partial-response field selectors of the Google API calls made by DrEdit.
+ * Each selector lists the fields its consumers read, so that Drive sends
+ * and the client library parses nothing more. Update the selector when a
+ * consumer starts reading another field.
+ */
+public final class FieldMasks {
+  private FieldMasks() {
+  }
+
+  /**
+   * Fields of a file read by {@code ClientFile}, the file cache and the
+   * content download. Used for every call whose response may be cached.
+   */
+  public static final String FILE = "id,title,description,mimeType,labels,"
+      + "editable,parents,etag,md5Checksum,fileSize,downloadUrl";
+
+  /**
+   * Fields of a file read when only its id is returned to the client.
+   */
+  public static final String FILE_ID = "id";
+
+  /**
+   * Fields of the user's profile returned by /user.
+   */
+  public static final String USERINFO = "id,email,verified_email,name,"
+      + "given_name,family_name,picture,link,locale";
+
+  /**
+   * Fields of the user's profile read to identify the user on sign in.
+   */
+  public static final String USERINFO_ID = "id";
+
+  /**
+   * Fields of Drive's About feed returned by /about.
+   */
+  public static final String ABOUT = "kind,etag,name,user,quotaBytesTotal,"
+      + "quotaBytesUsed,quotaBytesUsedInTrash,rootFolderId,permissionId,"
+      + "isCurrentAppInstalled";
+}
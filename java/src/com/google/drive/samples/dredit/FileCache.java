@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import com.google.api.services.drive.model.File;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Per-user cache of file metadata and content, bounded by the total number
+ * of bytes held. Entries carry the Drive etag and MD5 checksum of the file
+ * so that they can be revalidated with conditional requests. Files too large
+ * to be cached whole are cached as metadata only, which still holds their
+ * download URL.
+ */
+public class FileCache {
+  /**
+   * Estimated number of bytes held by the metadata of an entry.
+   */
+  private static final int METADATA_WEIGHT = 2048;
+
+  /**
+   * Cached entries, keyed by user id and file id.
+   */
+  private final Cache<String, Entry> entries;
+
+  /**
+   * Largest content, in bytes, that is cached.
+   */
+  private final int maximumContentSize;
+
+  /**
+   * Creates a new file cache.
+   * @param maximumSize Maximum number of bytes held by all entries.
+   * @param maximumContentSize Largest content, in bytes, that is cached.
+   */
+  public FileCache(long maximumSize, int maximumContentSize) {
+    this.maximumContentSize = maximumContentSize;
+    this.entries = CacheBuilder.newBuilder()
+        .maximumWeight(maximumSize)
+        .weigher(new Weigher<String, Entry>() {
+          @Override
+          public int weigh(String key, Entry entry) {
+            return METADATA_WEIGHT
+                + (entry.content != null ? entry.content.length : 0);
+          }
+        })
+        .build();
+  }
+
+  /**
+   * Returns whether content of the given size is small enough to be cached.
+   * @param size Size of the content in bytes, or null if unknown.
+   * @return Whether content of that size is cached.
+   */
+  public boolean isCacheable(Long size) {
+    return size != null && size <= maximumContentSize;
+  }
+
+  /**
+   * Returns the cached entry of the given file.
+   * @param userId The id of the user the file was fetched for.
+   * @param fileId The id of the file.
+   * @return The cached entry or null.
+   */
+  public Entry get(String userId, String fileId) {
+    return entries.getIfPresent(key(userId, fileId));
+  }
+
+  /**
+   * Caches the metadata and content of the given file, or its metadata only
+   * if the content is too large.
+   * @param userId The id of the user the file was fetched for.
+   * @param file Metadata of the file.
+   * @param content Content of the file.
+   * @return The cached entry.
+   */
+  public Entry put(String userId, File file, byte[] content) {
+    Entry entry =
+        new Entry(file, content.length <= maximumContentSize ? content : null);
+    entries.put(key(userId, file.getId()), entry);
+    return entry;
+  }
+
+  /**
+   * Caches the metadata of the given file only.
+   * @param userId The id of the user the file was fetched for.
+   * @param file Metadata of the file.
+   * @return The cached entry.
+   */
+  public Entry putMetadata(String userId, File file) {
+    Entry entry = new Entry(file, null);
+    entries.put(key(userId, file.getId()), entry);
+    return entry;
+  }
+
+  /**
+   * Drops the cached entry of the given file.
+   * @param userId The id of the user the file was fetched for.
+   * @param fileId The id of the file.
+   */
+  public void invalidate(String userId, String fileId) {
+    entries.invalidate(key(userId, fileId));
+  }
+
+  private static String key(String userId, String fileId) {
+    return userId + "/" + fileId;
+  }
+
+  /**
+   * Metadata and content of a cached file.
+   */
+  public static class Entry {
+    /**
+     * Metadata of the file.
+     */
+    public final File file;
+
+    /**
+     * Content of the file, or null if only the metadata is cached.
+     */
+    public final byte[] content;
+
+    Entry(File file, byte[] content) {
+      this.file = file;
+      this.content = content;
+    }
+
+    /**
+     * @param other Fresh metadata of the same file.
+     * @return Whether the cached content is the content of the given file.
+     */
+    public boolean hasContentOf(File other) {
+      return content != null && hasChecksumOf(other);
+    }
+
+    /**
+     * @param other Fresh metadata of the same file.
+     * @return Whether the cached metadata describes the content of the given
+     *         file, whether or not that content is cached.
+     */
+    public boolean hasChecksumOf(File other) {
+      return file.getMd5Checksum() != null
+          && file.getMd5Checksum().equals(other.getMd5Checksum());
+    }
+  }
+}
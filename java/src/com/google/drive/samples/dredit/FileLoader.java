@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Loads files from Drive through the file cache. Cached metadata is
+ * revalidated with its etag, and content is only downloaded again when its
+ * checksum changed. Concurrent identical loads share one request.
+ */
+public class FileLoader {
+  /**
+   * Name of the context attribute holding the file loader of the
+   * application.
+   */
+  public static final String ATTRIBUTE = FileLoader.class.getName();
+
+  /**
+   * Downloads the content of a file into memory.
+   */
+  public interface Downloader {
+    byte[] download(Drive service, File file) throws IOException;
+  }
+
+  /**
+   * Cache of recently opened files.
+   */
+  private final FileCache fileCache;
+
+  /**
+   * Downloader of file contents.
+   */
+  private final Downloader downloader;
+
+  /**
+   * Metadata requests in flight, keyed by user id and file id.
+   */
+  private final SingleFlight<String, FileCache.Entry> metadataLoads =
+      new SingleFlight<String, FileCache.Entry>();
+
+  /**
+   * Content downloads in flight, keyed by user id, file id and checksum.
+   */
+  private final SingleFlight<String, FileCache.Entry> contentLoads =
+      new SingleFlight<String, FileCache.Entry>();
+
+  /**
+   * Creates a new file loader.
+   * @param fileCache Cache to load files through.
+   * @param downloader Downloader of file contents.
+   */
+  public FileLoader(FileCache fileCache, Downloader downloader) {
+    this.fileCache = fileCache;
+    this.downloader = downloader;
+  }
+
+  /**
+   * Loads the given file: revalidates its cached entry, then downloads its
+   * content if it changed and is small enough to be cached.
+   * @param service Drive service to use.
+   * @param fileId ID of the file.
+   * @param userId The id of the user in session, or null.
+   * @return Entry holding the fresh metadata, and the content too unless it
+   *         is too large to be cached.
+   * @throws IOException Thrown if a request fails.
+   */
+  public FileCache.Entry load(Drive service, String fileId, String userId)
+      throws IOException {
+    FileCache.Entry cached =
+        userId != null ? fileCache.get(userId, fileId) : null;
+    FileCache.Entry entry = revalidate(service, fileId, userId, cached);
+    if (entry.content == null && userId != null
+        && fileCache.isCacheable(entry.file.getFileSize())) {
+      entry = download(service, userId, entry.file);
+    }
+    return entry;
+  }
+
+  /**
+   * Fetches the metadata of the given file, conditionally if it is cached.
+   * Concurrent revalidations of the same file by the same user share one
+   * request.
+   * @param service Drive service to use.
+   * @param fileId ID of the file.
+   * @param userId The id of the user in session, or null.
+   * @param cached Cached entry of the file, or null.
+   * @return Entry holding the fresh metadata, and the content too if the
+   *         cached content is still current.
+   * @throws IOException Thrown if the request fails.
+   */
+  public FileCache.Entry revalidate(final Drive service, final String fileId,
+      final String userId, final FileCache.Entry cached) throws IOException {
+    return metadataLoads.execute(userId != null ? userId + "/" + fileId : null,
+        new Callable<FileCache.Entry>() {
+          @Override
+          public FileCache.Entry call() throws IOException {
+            Drive.Files.Get request =
+                service.files().get(fileId).setFields(FieldMasks.FILE);
+            if (cached != null) {
+              request.getRequestHeaders().setIfNoneMatch(cached.file.getEtag());
+            }
+            File file;
+            try {
+              file = request.execute();
+            } catch (GoogleJsonResponseException e) {
+              if (e.getStatusCode() == 304 && cached != null) {
+                // Unchanged since it was cached.
+                return cached;
+              }
+              throw e;
+            }
+            if (userId == null) {
+              return new FileCache.Entry(file, null);
+            } else if (cached != null && cached.hasContentOf(file)) {
+              // Only the metadata changed.
+              return fileCache.put(userId, file, cached.content);
+            }
+            return fileCache.putMetadata(userId, file);
+          }
+        });
+  }
+
+  /**
+   * Downloads the content of the given file into the file cache. Concurrent
+   * downloads of the same revision by the same user share one request.
+   * @param service Drive service to use.
+   * @param userId The id of the user in session.
+   * @param file Metadata of the file.
+   * @return The cached entry of the file.
+   * @throws IOException Thrown if the download fails.
+   */
+  public FileCache.Entry download(final Drive service, final String userId,
+      final File file) throws IOException {
+    return contentLoads.execute(
+        userId + "/" + file.getId() + "/" + file.getMd5Checksum(),
+        new Callable<FileCache.Entry>() {
+          @Override
+          public FileCache.Entry call() throws IOException {
+            byte[] content = downloader.download(service, file);
+            return fileCache.put(userId, file, content);
+          }
+        });
+  }
+}
@@ -14,19 +14,49 @@
 
 package com.google.drive.samples.dredit;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import com.google.drive.samples.dredit.model.ClientFile;
+import com.google.drive.samples.dredit.model.ClientFileReader;
+import com.google.drive.samples.dredit.model.ClientFileWriter;
+import com.google.drive.samples.dredit.model.DrEditGson;
+import com.google.drive.samples.dredit.model.Edit;
 
 /**
  * Servlet providing a small API for the DrEdit JavaScript client to use in
@@ -37,42 +67,553 @@ import com.google.drive.samples.dredit.model.ClientFile;
  */
 @SuppressWarnings("serial")
 public class FileServlet extends DrEditServlet {
+  /**
+   * Name of the init parameter setting the chunk size, in bytes, of
+   * resumable uploads. Content larger than one chunk is saved with the
+   * resumable upload protocol; 0 disables resumable uploads.
+   */
+  public static final String PARAM_UPLOAD_CHUNK_SIZE = "uploadChunkSize";
+
+  /**
+   * Name of the init parameter setting how many times an interrupted
+   * resumable upload is resumed within a save.
+   */
+  public static final String PARAM_UPLOAD_MAX_ATTEMPTS = "uploadMaxAttempts";
+
+  /**
+   * Name of the init parameter setting the total number of bytes held by the
+   * file cache.
+   */
+  public static final String PARAM_FILE_CACHE_SIZE = "fileCacheSize";
+
+  /**
+   * Name of the init parameter setting the size, in bytes, of the largest
+   * file content that is cached.
+   */
+  public static final String PARAM_FILE_CACHE_MAX_CONTENT_SIZE =
+      "fileCacheMaxContentSize";
+
+  /**
+   * Name of the init parameter setting how many milliseconds saves are held
+   * for, so that rapid saves of a file are merged into one Drive update.
+   * Saves are acknowledged before they are written; 0 writes them right away.
+   */
+  public static final String PARAM_SAVE_DELAY = "saveDelay";
+
+  /**
+   * Name of the init parameter setting the number of threads writing held
+   * saves.
+   */
+  public static final String PARAM_SAVE_THREADS = "saveThreads";
+
+  /**
+   * Name of the init parameter setting how many file contents are downloaded
+   * at once when opening several files.
+   */
+  public static final String PARAM_BATCH_THREADS = "batchThreads";
+
+  /**
+   * Name of the init parameter setting the size, in bytes, of the largest
+   * accepted request body once decompressed.
+   */
+  public static final String PARAM_MAX_REQUEST_SIZE = "maxRequestSize";
+
+  /**
+   * Largest number of files opened by one request.
+   */
+  private static final int MAX_BATCH_FILES = 100;
+
+  /**
+   * Uploader of large saves, or null if resumable uploads are disabled.
+   */
+  private ResumableUploader uploader = null;
+
+  /**
+   * Cache of recently opened files, revalidated against Drive with their
+   * etag.
+   */
+  private FileCache fileCache = null;
+
+  /**
+   * Loader of files through the file cache.
+   */
+  private FileLoader fileLoader = null;
+
+  /**
+   * Queue of held saves, or null if saves are written right away.
+   */
+  private SaveQueue saveQueue = null;
+
+  /**
+   * Number of file contents downloaded at once when opening several files.
+   */
+  private int batchThreads = 4;
+
+  /**
+   * Size, in bytes, of the largest accepted request body once decompressed.
+   */
+  private int maxRequestSize = 32 * 1024 * 1024;
+
+  /**
+   * Size, in bytes, of the largest saved content read into memory before it
+   * is uploaded; larger content is uploaded as it is read from the request.
+   * Equal to the largest cached content, as only cached content is needed in
+   * memory.
+   */
+  private int maxBufferedContent = 1024 * 1024;
+
+  /**
+   * Initializes the Servlet.
+   */
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    int chunkSize = getIntInitParameter(PARAM_UPLOAD_CHUNK_SIZE,
+        MediaHttpUploader.DEFAULT_CHUNK_SIZE);
+    if (chunkSize > 0) {
+      uploader = new ResumableUploader(chunkSize,
+          getIntInitParameter(PARAM_UPLOAD_MAX_ATTEMPTS, 3));
+    }
+    maxBufferedContent = getIntInitParameter(PARAM_FILE_CACHE_MAX_CONTENT_SIZE,
+        maxBufferedContent);
+    fileCache = new FileCache(
+        getIntInitParameter(PARAM_FILE_CACHE_SIZE, 32 * 1024 * 1024),
+        maxBufferedContent);
+    fileLoader = new FileLoader(fileCache, new FileLoader.Downloader() {
+      @Override
+      public byte[] download(Drive service, File file) throws IOException {
+        return downloadFileBytes(service, file);
+      }
+    });
+    // Let other servlets open files through the file cache.
+    getServletContext().setAttribute(FileLoader.ATTRIBUTE, fileLoader);
+    batchThreads = getIntInitParameter(PARAM_BATCH_THREADS, batchThreads);
+    maxRequestSize =
+        getIntInitParameter(PARAM_MAX_REQUEST_SIZE, maxRequestSize);
+    int saveDelay = getIntInitParameter(PARAM_SAVE_DELAY, 0);
+    if (saveDelay > 0) {
+      saveQueue = new SaveQueue(saveDelay,
+          getIntInitParameter(PARAM_SAVE_THREADS, 2),
+          ThreadFactories.background("dredit-save"), new SaveQueue.Writer() {
+            @Override
+            public void write(SaveQueue.Save save) throws IOException {
+              writeSave(save);
+            }
+          });
+      // Let other servlets read the user's own held saves.
+      getServletContext().setAttribute(SaveQueue.ATTRIBUTE, saveQueue);
+    }
+  }
+
+  /**
+   * Writes the held saves before the Servlet is taken out of service.
+   */
+  @Override
+  public void destroy() {
+    getServletContext().removeAttribute(FileLoader.ATTRIBUTE);
+    if (saveQueue != null) {
+      getServletContext().removeAttribute(SaveQueue.ATTRIBUTE);
+      saveQueue.shutdown(30000);
+    }
+    super.destroy();
+  }
+
   /**
    * Given a {@code file_id} URI parameter, return a JSON representation
-   * of the given file.
+   * of the given file. Given several {@code file_id} parameters, return a
+   * JSON array of the representations of the given files.
    */
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
-    Drive service = getDriveService(getCredential(req, resp));
-    String fileId = req.getParameter("file_id");
+    Drive service = getDriveService(req, resp);
+    String[] fileIds = req.getParameterValues("file_id");
 
-    if (fileId == null) {
+    if (fileIds == null) {
       sendError(resp, 400, "The `file_id` URI parameter must be specified.");
       return;
     }
+    if (fileIds.length > 1) {
+      sendClientFiles(req, resp, service,
+          new LinkedHashSet<String>(Arrays.asList(fileIds)));
+      return;
+    }
+    String fileId = fileIds[0];
 
-    File file = null;
+    String userId = getUserId(req);
+    if (saveQueue != null && userId != null) {
+      // Read the user's own held save, if any.
+      saveQueue.flush(userId, fileId);
+    }
+    FileCache.Entry cached =
+        userId != null ? fileCache.get(userId, fileId) : null;
+    ContentPrefetch prefetch = null;
+    if (cached != null && cached.content == null
+        && cached.file.getDownloadUrl() != null
+        && !matchesIfNoneMatch(req, cached.file.getEtag())) {
+      // Only the metadata is cached and the client doesn't have this
+      // version, start downloading the content it describes while it is
+      // revalidated.
+      prefetch = new ContentPrefetch(service, cached.file);
+    }
     try {
-      file = service.files().get(fileId).execute();
+      sendClientFile(req, resp, service, fileId, userId, cached, prefetch);
+    } finally {
+      if (prefetch != null) {
+        prefetch.close();
+      }
+    }
+  }
+
+  /**
+   * Responds with the JSON representation of the given file, revalidating
+   * its cached entry if there is one.
+   *
+   * @param req Request object.
+   * @param resp Response object.
+   * @param service Drive service to use.
+   * @param fileId ID of the file to send.
+   * @param userId The id of the user in session, or null.
+   * @param cached Cached entry of the file, or null.
+   * @param prefetch Download of the cached revision of the file, or null.
+   * @throws IOException Thrown if a request or the response fails.
+   */
+  private void sendClientFile(HttpServletRequest req, HttpServletResponse resp,
+      Drive service, String fileId, String userId, FileCache.Entry cached,
+      ContentPrefetch prefetch) throws IOException {
+    FileCache.Entry entry;
+    try {
+      entry = fileLoader.revalidate(service, fileId, userId, cached);
     } catch (GoogleJsonResponseException e) {
       if (e.getStatusCode() == 401) {
         // The user has revoked our token or it is otherwise bad.
         // Delete the local copy so that their next page load will recover.
         deleteCredential(req, resp);
-        sendGoogleJsonResponseError(resp, e);
-        return;
       }
+      // Report the actual error, a throttled or failed request is not a
+      // missing file.
+      sendGoogleJsonResponseError(resp, e);
+      return;
     }
 
-    if (file != null) {
-      String content = downloadFileContent(service, file);
-      if (content == null) {
-        content = "";
+    if (checkNotModified(req, resp, entry.file.getEtag())) {
+      // The client already has this version, skip the download.
+      return;
+    }
+    if (entry.content == null && userId != null
+        && fileCache.isCacheable(entry.file.getFileSize())) {
+      entry = fileLoader.download(service, userId, entry.file);
+    }
+    if (entry.content != null) {
+      sendClientFile(resp, entry.file, entry.content);
+    } else if (prefetch != null && cached.hasChecksumOf(entry.file)) {
+      HttpResponse prefetched;
+      try {
+        prefetched = prefetch.take();
+      } catch (IOException e) {
+        // The cached download URL expired or the token changed, download
+        // with the fresh metadata.
+        sendClientFile(resp, service, entry.file);
+        return;
       }
-      sendJson(resp, new ClientFile(file, content));
+      sendClientFile(resp, entry.file, prefetched);
     } else {
-      sendError(resp, 404, "File not found");
+      sendClientFile(resp, service, entry.file);
+    }
+  }
+
+  /**
+   * Responds with a JSON array of the representations of the given files.
+   * Their metadata is fetched with a single batch request, then their
+   * contents are downloaded in parallel and each file is sent as soon as its
+   * content is available. Files that cannot be opened are sent as an object
+   * holding their {@code resource_id} and an {@code error}.
+   *
+   * @param req Request object.
+   * @param resp Response object.
+   * @param service Drive service to use.
+   * @param fileIds IDs of the files to send.
+   * @throws IOException Thrown if a request or the response fails.
+   */
+  private void sendClientFiles(HttpServletRequest req,
+      HttpServletResponse resp, Drive service, Set<String> fileIds)
+      throws IOException {
+    if (fileIds.size() > MAX_BATCH_FILES) {
+      sendError(resp, 400, "At most " + MAX_BATCH_FILES
+          + " files can be opened at once.");
+      return;
+    }
+    String userId = getUserId(req);
+    final Map<String, File> files = new LinkedHashMap<String, File>();
+    final Map<String, GoogleJsonError> errors =
+        new LinkedHashMap<String, GoogleJsonError>();
+    // Each part is rate limited and retried by the upstream policy as a
+    // request of its own, and reports its own error.
+    BatchRequest batch = service.batch(UpstreamPolicy.batchInitializer());
+    for (final String fileId : fileIds) {
+      if (saveQueue != null && userId != null) {
+        saveQueue.flush(userId, fileId);
+      }
+      HttpRequest request = service.files().get(fileId)
+          .setFields(FieldMasks.FILE).buildHttpRequest();
+      batch.queue(request, File.class, GoogleJsonErrorContainer.class,
+          new JsonBatchCallback<File>() {
+            @Override
+            public void onSuccess(File file, HttpHeaders headers) {
+              files.put(fileId, file);
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error,
+                HttpHeaders headers) {
+              errors.put(fileId, error);
+            }
+          });
+    }
+    batch.execute();
+    for (GoogleJsonError error : errors.values()) {
+      if (error.getCode() == 401) {
+        // The user has revoked our token or it is otherwise bad.
+        // Delete the local copy so that their next page load will recover.
+        deleteCredential(req, resp);
+        sendError(resp, 401, error.getMessage());
+        return;
+      }
+    }
+
+    resp.setContentType("application/json");
+    Writer out = resp.getWriter();
+    ClientFileWriter writer = new ClientFileWriter(DrEditGson.get());
+    boolean first = true;
+    out.write('[');
+    for (Map.Entry<String, GoogleJsonError> error : errors.entrySet()) {
+      first = writeSeparator(out, first);
+      writeError(out, error.getKey(), error.getValue().getCode(),
+          error.getValue().getMessage());
+    }
+    List<Download> downloads = new ArrayList<Download>();
+    for (File file : files.values()) {
+      FileCache.Entry cached =
+          userId != null ? fileCache.get(userId, file.getId()) : null;
+      if (cached != null && cached.hasContentOf(file)) {
+        first = writeSeparator(out, first);
+        writer.write(new ClientFile(file, null),
+            new ByteArrayInputStream(cached.content), out);
+      } else {
+        downloads.add(new Download(service, file, userId != null
+            && fileCache.isCacheable(file.getFileSize())));
+      }
+    }
+    out.flush();
+
+    if (!downloads.isEmpty()) {
+      int parallelism = Math.min(batchThreads, downloads.size());
+      UpstreamExecutor executor =
+          UpstreamExecutor.create("dredit-download", parallelism);
+      try {
+        CompletionService<Download> completed =
+            new ExecutorCompletionService<Download>(executor);
+        // At most parallelism downloads are started and not yet written,
+        // so that memory and connections don't grow with the number of
+        // files.
+        int submitted = 0;
+        for (int written = 0; written < downloads.size(); written++) {
+          while (submitted < downloads.size()
+              && submitted - written < parallelism) {
+            completed.submit(downloads.get(submitted++));
+          }
+          Download download = completed.take().get();
+          first = writeSeparator(out, first);
+          download.write(userId, writer, out);
+          out.flush();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while downloading");
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        executor.close();
+        for (Download download : downloads) {
+          download.release();
+        }
+      }
+    }
+    out.write(']');
+  }
+
+  /**
+   * Writes the separator of JSON array elements, unless it is the first one.
+   */
+  private static boolean writeSeparator(Writer out, boolean first)
+      throws IOException {
+    if (!first) {
+      out.write(',');
+    }
+    return false;
+  }
+
+  /**
+   * Writes the JSON representation of a file that could not be opened.
+   */
+  private static void writeError(Writer out, String fileId, int code,
+      String message) throws IOException {
+    Map<String, Object> error = new LinkedHashMap<String, Object>();
+    error.put("code", code);
+    error.put("message", message);
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("resource_id", fileId);
+    result.put("error", error);
+    DrEditGson.get().toJson(result, out);
+  }
+
+  /**
+   * Download of the content of a file, run in parallel with others. Files
+   * small enough to be cached are downloaded into memory, others are
+   * streamed into the response as they are written.
+   */
+  private class Download implements Callable<Download> {
+    final Drive service;
+    final File file;
+    final boolean cacheable;
+    byte[] content;
+    HttpResponse response;
+    IOException error;
+
+    Download(Drive service, File file, boolean cacheable) {
+      this.service = service;
+      this.file = file;
+      this.cacheable = cacheable;
+    }
+
+    @Override
+    public Download call() {
+      try {
+        if (cacheable) {
+          content = downloadFileBytes(service, file);
+        } else {
+          response = downloadFileContent(service, file);
+        }
+      } catch (IOException e) {
+        error = e;
+      }
+      return this;
+    }
+
+    /**
+     * Writes the file, or the error of its download, and releases its
+     * content.
+     */
+    void write(String userId, ClientFileWriter writer, Writer out)
+        throws IOException {
+      if (error != null) {
+        writeError(out, file.getId(), getStatusCode(error),
+            getMessage(error));
+      } else if (content != null) {
+        fileCache.put(userId, file, content);
+        writer.write(new ClientFile(file, null),
+            new ByteArrayInputStream(content), out);
+      } else {
+        writer.write(new ClientFile(file, null),
+            response != null ? response.getContent() : null, out);
+      }
+      release();
+    }
+
+    /**
+     * Releases the content of the download, if it was not written.
+     */
+    void release() {
+      content = null;
+      if (response != null) {
+        try {
+          response.disconnect();
+        } catch (IOException e) {
+          // The content is no longer needed.
+        }
+        response = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the HTTP status of the given upstream failure, 500 if it has
+   * none.
+   */
+  private static int getStatusCode(IOException e) {
+    if (e instanceof HttpResponseException) {
+      return ((HttpResponseException) e).getStatusCode();
+    }
+    return 500;
+  }
+
+  /**
+   * Returns the message of the given upstream failure, as reported by Drive
+   * if possible.
+   */
+  private static String getMessage(IOException e) {
+    if (e instanceof GoogleJsonResponseException
+        && ((GoogleJsonResponseException) e).getDetails() != null) {
+      return ((GoogleJsonResponseException) e).getDetails().getMessage();
+    }
+    return e.getMessage();
+  }
+
+  /**
+   * Download of the content of a file, started before its metadata is
+   * revalidated so that both requests overlap.
+   */
+  private class ContentPrefetch {
+    private final UpstreamExecutor executor;
+    private final Future<HttpResponse> download;
+    private boolean taken = false;
+
+    ContentPrefetch(final Drive service, final File file) {
+      executor = UpstreamExecutor.create("dredit-prefetch", 1);
+      download = executor.submit(new Callable<HttpResponse>() {
+        @Override
+        public HttpResponse call() throws IOException {
+          return downloadFileContent(service, file);
+        }
+      });
+    }
+
+    /**
+     * Waits for the download to start and returns its response.
+     */
+    HttpResponse take() throws IOException {
+      taken = true;
+      try {
+        return download.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while downloading");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+
+    /**
+     * Cancels the download if it was not taken, without waiting for it.
+     */
+    void close() {
+      if (!taken && !download.cancel(true)) {
+        // Already complete, release the unused response.
+        try {
+          HttpResponse response = take();
+          if (response != null) {
+            response.disconnect();
+          }
+        } catch (IOException e) {
+          // The content was not needed.
+        } catch (RuntimeException e) {
+          // The content was not needed.
+        }
+      }
+      executor.close();
     }
   }
 
@@ -83,18 +624,32 @@ public class FileServlet extends DrEditServlet {
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
-    Drive service = getDriveService(getCredential(req, resp));
-    ClientFile clientFile = new ClientFile(req.getReader());
-    File file = clientFile.toFile();
+    Drive service = getDriveService(req, resp);
+    Reader body = getRequestReader(req, resp, maxRequestSize);
+    if (body == null) {
+      return;
+    }
+    try {
+      ClientFileReader reader =
+          new ClientFileReader(body, maxBufferedContent);
+      ClientFile clientFile = reader.read(DrEditGson.get());
+      File file = clientFile.toFile();
 
-    if (!clientFile.content.equals("")) {
-      file = service.files().insert(file,
-          ByteArrayContent.fromString(clientFile.mimeType, clientFile.content))
-          .execute();
-    } else {
-      file = service.files().insert(file).execute();
+      if (reader.getContentLength() != 0) {
+        file = service.files().insert(file,
+            reader.getContent(clientFile.mimeType))
+            .setFields(FieldMasks.FILE_ID).execute();
+        if (reader.hasTrailingMetadata()) {
+          patchTrailingMetadata(service, file.getId(), reader);
+        }
+      } else {
+        file = service.files().insert(file)
+            .setFields(FieldMasks.FILE_ID).execute();
+      }
+      sendJson(resp, file.getId());
+    } catch (RequestBodyException e) {
+      sendRequestBodyError(resp, e);
     }
-    sendJson(resp, file.getId());
   }
 
   /**
@@ -105,41 +660,327 @@ public class FileServlet extends DrEditServlet {
   public void doPut(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
     boolean newRevision = req.getParameter("newRevision").equals(Boolean.TRUE);
-    Drive service = getDriveService(getCredential(req, resp));
-    ClientFile clientFile = new ClientFile(req.getReader());
-    File file = clientFile.toFile();
-    // If there is content we update the given file
-    if (clientFile.content != null) {
-      file = service.files().update(clientFile.resource_id, file,
-          ByteArrayContent.fromString(clientFile.mimeType, clientFile.content))
-          .setNewRevision(newRevision).execute();
-    } else { // If there is no content we patch the metadata only
-      file = service.files()
-          .patch(clientFile.resource_id, file)
-          .setNewRevision(newRevision)
+    Drive service = getDriveService(req, resp);
+    Reader body = getRequestReader(req, resp, maxRequestSize);
+    if (body == null) {
+      return;
+    }
+    try {
+      ClientFileReader reader =
+          new ClientFileReader(body, maxBufferedContent);
+      ClientFile clientFile = reader.read(DrEditGson.get());
+      String userId = getUserId(req);
+      boolean hold = saveQueue != null && userId != null;
+      if (reader.isContentStreamed()
+          && (hold || clientFile.resource_id == null)) {
+        // Held saves keep their content, and the file to upload to must be
+        // known before its content: read the whole request.
+        reader.getContentBytes();
+        clientFile = reader.getMetadata(DrEditGson.get());
+      }
+      File file = clientFile.toFile();
+      byte[] savedContent = null;
+      String mimeType = clientFile.mimeType;
+      if (clientFile.edits != null) {
+        // Rebuild the content from the cached base revision and the edits
+        savedContent = applyEdits(resp, service, userId, clientFile);
+        if (savedContent == null) {
+          return;
+        }
+        if (mimeType == null) {
+          mimeType = DEFAULT_MIMETYPE;
+        }
+      }
+      if (hold) {
+        if (savedContent == null && reader.hasContent()) {
+          savedContent = reader.getContentBytes();
+        }
+        holdSave(new SaveQueue.Save(userId, service, clientFile.resource_id,
+            file, mimeType, savedContent, newRevision));
+        sendJson(resp, clientFile.resource_id);
+        return;
+      }
+      if (savedContent != null) {
+        file = updateContent(service, userId, clientFile.resource_id, file,
+            new ByteArrayContent(mimeType, savedContent), newRevision);
+      } else if (reader.isContentStreamed()) {
+        // Large content is uploaded as it is read from the request
+        file = updateContent(service, userId, clientFile.resource_id, file,
+            reader.getContent(mimeType), newRevision);
+        if (reader.hasTrailingMetadata()) {
+          file = patchTrailingMetadata(service, clientFile.resource_id,
+              reader);
+        }
+      } else if (reader.hasContent()) {
+        // If there is content we update the given file, sharing the bytes
+        // of cacheable content with the file cache
+        if (fileCache.isCacheable((long) reader.getContentLength())) {
+          savedContent = reader.getContentBytes();
+          file = updateContent(service, userId, clientFile.resource_id, file,
+              new ByteArrayContent(mimeType, savedContent), newRevision);
+        } else {
+          file = updateContent(service, userId, clientFile.resource_id, file,
+              reader.getContent(mimeType), newRevision);
+        }
+      } else { // If there is no content we patch the metadata only
+        file = service.files()
+            .patch(clientFile.resource_id, file)
+            .setNewRevision(newRevision)
+            .setFields(FieldMasks.FILE)
+            .execute();
+      }
+      cacheSaved(userId, clientFile.resource_id, file, savedContent);
+      sendJson(resp, file.getId());
+    } catch (RequestBodyException e) {
+      sendRequestBodyError(resp, e);
+    }
+  }
+
+  /**
+   * Queues the given save. Its content is cached right away under its MD5
+   * checksum, so that the next save by difference has a base.
+   *
+   * @param save Save to hold.
+   */
+  private void holdSave(SaveQueue.Save save) {
+    saveQueue.enqueue(save);
+    if (save.content != null) {
+      File held = save.file.clone();
+      held.setMd5Checksum(Hashing.md5().hashBytes(save.content).toString());
+      fileCache.put(save.userId, held, save.content);
+    }
+  }
+
+  /**
+   * Writes a held save to Drive.
+   *
+   * @param save Save to write.
+   * @throws IOException Thrown if the save fails.
+   */
+  private void writeSave(SaveQueue.Save save) throws IOException {
+    File file;
+    if (save.content != null) {
+      file = updateContent(save.service, save.userId, save.fileId, save.file,
+          new ByteArrayContent(save.mimeType, save.content), save.newRevision);
+    } else {
+      file = save.service.files()
+          .patch(save.fileId, save.file)
+          .setNewRevision(save.newRevision)
+          .setFields(FieldMasks.FILE)
           .execute();
     }
-    sendJson(resp, file.getId());
+    FileCache.Entry cached = fileCache.get(save.userId, save.fileId);
+    if (cached != null && cached.file.getEtag() == null
+        && !cached.hasContentOf(file)) {
+      // A later save is held, keep its content as the base.
+      return;
+    }
+    cacheSaved(save.userId, save.fileId, file, save.content);
   }
 
   /**
-   * Download the content of the given file.
+   * Caches the saved content of a file as the base of its next save by
+   * difference.
    *
-   * @param service Drive service to use for downloading.
-   * @param file File metadata object whose content to download.
-   * @return String representation of file content.  String is returned here
-   *         because this app is setup for text/plain files.
-   * @throws IOException Thrown if the request fails for whatever reason.
+   * @param userId The id of the user who saved the file, or null.
+   * @param fileId ID of the saved file.
+   * @param file Metadata of the saved file.
+   * @param content Saved content, or null if only the metadata was saved.
    */
-  private String downloadFileContent(Drive service, File file)
-      throws IOException {
-    GenericUrl url = new GenericUrl(file.getDownloadUrl());
-    HttpResponse response = service.getRequestFactory().buildGetRequest(url)
+  private void cacheSaved(String userId, String fileId, File file,
+      byte[] content) {
+    if (userId == null) {
+      return;
+    }
+    FileCache.Entry cached = fileCache.get(userId, fileId);
+    if (content != null) {
+      fileCache.put(userId, file, content);
+    } else if (cached != null && cached.hasContentOf(file)) {
+      fileCache.put(userId, file, cached.content);
+    } else {
+      fileCache.invalidate(userId, fileId);
+    }
+  }
+
+  /**
+   * Patches a file with the metadata fields that followed its streamed
+   * content in the request, which were only read along with the content.
+   *
+   * @param service Drive service to use.
+   * @param fileId ID of the file to patch.
+   * @param reader Reader of the request, once its content was read.
+   * @return The patched file.
+   * @throws IOException Thrown if the request fails.
+   */
+  private File patchTrailingMetadata(Drive service, String fileId,
+      ClientFileReader reader) throws IOException {
+    return service.files()
+        .patch(fileId, reader.getMetadata(DrEditGson.get()).toFile())
+        .setFields(FieldMasks.FILE)
         .execute();
+  }
+
+  /**
+   * Updates the content and metadata of the given file, with a resumable
+   * upload if the content is larger than one upload chunk or of unknown
+   * length.
+   *
+   * @param service Drive service to use for uploading.
+   * @param userId The id of the user saving the file.
+   * @param fileId ID of the file to update.
+   * @param file New metadata of the file.
+   * @param content New content of the file.
+   * @param newRevision Whether to create a new revision of the file.
+   * @return The updated file.
+   * @throws IOException Thrown if the upload fails.
+   */
+  private File updateContent(Drive service, String userId, String fileId,
+      File file, AbstractInputStreamContent content, boolean newRevision)
+      throws IOException {
+    if (uploader != null && (content.getLength() < 0
+        || content.getLength() > uploader.getChunkSize())) {
+      return uploader.update(service, userId, fileId, file, content,
+          newRevision);
+    }
+    return service.files().update(fileId, file, content)
+        .setNewRevision(newRevision).setFields(FieldMasks.FILE).execute();
+  }
+
+  /**
+   * Applies the edits of the given file to the content they are based on,
+   * taken from the file cache or else downloaded from Drive. Responds with
+   * HTTP 412 if that content is no longer the current revision of the file,
+   * in which case the client must send the whole content, or with HTTP 409
+   * if the edited content does not match the checksum sent by the client.
+   *
+   * @param resp Response object.
+   * @param service Drive service to use.
+   * @param userId The id of the user in session, or null.
+   * @param clientFile File holding the edits to apply.
+   * @return The edited content encoded as UTF-8, or null if an error was sent.
+   * @throws IOException Thrown if downloading the base content fails.
+   */
+  private byte[] applyEdits(HttpServletResponse resp, Drive service,
+      String userId, ClientFile clientFile) throws IOException {
+    byte[] base = null;
+    if (clientFile.base_md5 != null) {
+      try {
+        base = getBaseContent(service, userId, clientFile.resource_id,
+            clientFile.base_md5);
+      } catch (GoogleJsonResponseException e) {
+        sendGoogleJsonResponseError(resp, e);
+        return null;
+      }
+    }
+    if (base == null) {
+      sendError(resp, 412, "Base content is not available, send the content.");
+      return null;
+    }
+    byte[] content;
     try {
-      return new Scanner(response.getContent()).useDelimiter("\\A").next();
-    } catch (java.util.NoSuchElementException e) {
-      return "";
+      String text = new String(base, Charsets.UTF_8);
+      content = Edit.apply(text, clientFile.edits).getBytes(Charsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      sendError(resp, 409, e.getMessage());
+      return null;
+    }
+    String md5 = Hashing.md5().hashBytes(content).toString();
+    if (!md5.equals(clientFile.md5Checksum)) {
+      sendError(resp, 409, "Edited content does not match its checksum.");
+      return null;
+    }
+    return content;
+  }
+
+  /**
+   * Returns the revision of a file whose MD5 checksum is given, if it is the
+   * cached or the current revision. Content larger than the file cache holds
+   * is never cached, so the base of its saves by difference is downloaded
+   * from Drive again.
+   *
+   * @param service Drive service to use.
+   * @param userId The id of the user in session, or null.
+   * @param fileId ID of the file.
+   * @param md5 MD5 checksum of the wanted revision.
+   * @return Content of the revision, or null if it is neither cached nor
+   *         current, or larger than the largest accepted request.
+   * @throws IOException Thrown if a request fails.
+   */
+  private byte[] getBaseContent(Drive service, String userId, String fileId,
+      String md5) throws IOException {
+    FileCache.Entry cached =
+        userId != null ? fileCache.get(userId, fileId) : null;
+    if (cached != null && cached.content != null
+        && md5.equals(cached.file.getMd5Checksum())) {
+      return cached.content;
+    }
+    FileCache.Entry entry =
+        fileLoader.revalidate(service, fileId, userId, cached);
+    if (!md5.equals(entry.file.getMd5Checksum())) {
+      return null;
+    }
+    if (entry.content != null) {
+      return entry.content;
+    }
+    Long size = entry.file.getFileSize();
+    if (userId != null && fileCache.isCacheable(size)) {
+      return fileLoader.download(service, userId, entry.file).content;
+    }
+    if (size == null || size > maxRequestSize) {
+      return null;
+    }
+    return downloadFileBytes(service, entry.file);
+  }
+
+  /**
+   * Responds with the JSON representation of the given file and content.
+   *
+   * @param resp Response object.
+   * @param file File metadata object to send.
+   * @param content Content of the file.
+   * @throws IOException Thrown if the response fails.
+   */
+  private void sendClientFile(HttpServletResponse resp, File file,
+      byte[] content) throws IOException {
+    resp.setContentType("application/json");
+    new ClientFileWriter(DrEditGson.get()).write(new ClientFile(file, null),
+        new ByteArrayInputStream(content), resp.getWriter());
+  }
+
+  /**
+   * Responds with the JSON representation of the given file, streaming its
+   * content from Drive into the response in fixed-size chunks.
+   *
+   * @param resp Response object.
+   * @param service Drive service to use for downloading.
+   * @param file File metadata object whose content to send.
+   * @throws IOException Thrown if the download or the response fails.
+   */
+  private void sendClientFile(HttpServletResponse resp, Drive service,
+      File file) throws IOException {
+    sendClientFile(resp, file, downloadFileContent(service, file));
+  }
+
+  /**
+   * Responds with the JSON representation of the given file, streaming its
+   * content from the given download into the response.
+   *
+   * @param resp Response object.
+   * @param file File metadata object to send.
+   * @param content Download of the content of the file, or null if it has
+   *        no downloadable content.
+   * @throws IOException Thrown if the download or the response fails.
+   */
+  private void sendClientFile(HttpServletResponse resp, File file,
+      HttpResponse content) throws IOException {
+    try {
+      resp.setContentType("application/json");
+      new ClientFileWriter(DrEditGson.get()).write(new ClientFile(file, null),
+          content != null ? content.getContent() : null, resp.getWriter());
+    } finally {
+      if (content != null) {
+        content.disconnect();
+      }
     }
   }
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.oauth2.Oauth2;
+import com.google.api.services.oauth2.model.Userinfo;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Per-user cache of the profile and Drive About feed of users, which rarely
+ * change. Concurrent requests for the same missing entry share a single
+ * upstream call.
+ */
+public class ProfileCache {
+  /**
+   * Cached profiles, keyed by user id.
+   */
+  private final Cache<String, Userinfo> userinfo;
+
+  /**
+   * Cached About feeds, keyed by user id.
+   */
+  private final Cache<String, About> about;
+
+  /**
+   * Creates a new profile cache.
+   * @param maximumSize Maximum number of users to keep entries for.
+   * @param userinfoTtlSeconds Seconds after which a profile is fetched again.
+   * @param aboutTtlSeconds Seconds after which an About feed is fetched
+   *        again.
+   */
+  public ProfileCache(long maximumSize, long userinfoTtlSeconds,
+      long aboutTtlSeconds) {
+    this.userinfo = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(userinfoTtlSeconds, TimeUnit.SECONDS)
+        .build();
+    this.about = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(aboutTtlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Returns the profile of the given user, fetching it if needed.
+   * @param userId The id of the user.
+   * @param service Oauth2 service of the user.
+   * @return Profile of the user.
+   * @throws IOException Thrown if the profile cannot be fetched.
+   */
+  public Userinfo getUserinfo(String userId, final Oauth2 service)
+      throws IOException {
+    return get(userinfo, userId, new Callable<Userinfo>() {
+      @Override
+      public Userinfo call() throws IOException {
+        return service.userinfo().get().setFields(FieldMasks.USERINFO)
+            .execute();
+      }
+    });
+  }
+
+  /**
+   * Returns the About feed of the given user, fetching it if needed.
+   * @param userId The id of the user.
+   * @param service Drive service of the user.
+   * @return About feed of the user.
+   * @throws IOException Thrown if the About feed cannot be fetched.
+   */
+  public About getAbout(String userId, final Drive service)
+      throws IOException {
+    return get(about, userId, new Callable<About>() {
+      @Override
+      public About call() throws IOException {
+        return service.about().get().setFields(FieldMasks.ABOUT).execute();
+      }
+    });
+  }
+
+  /**
+   * Drops the cached entries of the given user.
+   * @param userId The id of the user.
+   */
+  public void invalidate(String userId) {
+    userinfo.invalidate(userId);
+    about.invalidate(userId);
+  }
+
+  private static <V> V get(Cache<String, V> cache, String userId,
+      Callable<V> loader) throws IOException {
+    try {
+      return cache.get(userId, loader);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading a request body that must be refused, carrying the HTTP
+ * status to respond with: 413 if the body is larger than allowed once
+ * decompressed, 400 if its compressed encoding is corrupt.
+ */
+@SuppressWarnings("serial")
+class RequestBodyException extends IOException {
+  /**
+   * HTTP status code to respond with.
+   */
+  private final int statusCode;
+
+  /**
+   * @param statusCode HTTP status code to respond with.
+   * @param message Message to respond with.
+   */
+  RequestBodyException(int statusCode, String message) {
+    super(message);
+    this.statusCode = statusCode;
+  }
+
+  /**
+   * @return HTTP status code to respond with.
+   */
+  int getStatusCode() {
+    return statusCode;
+  }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Uploads file content to Drive with the resumable upload protocol, one
+ * chunk at a time. Upload sessions are tracked per save so that a save
+ * interrupted by a dropped connection resumes from the last offset committed
+ * by Drive instead of transferring the whole document again, either within
+ * the same request or when the client retries the save.
+ */
+public class ResumableUploader {
+  /**
+   * HTTP status code Drive responds with while an upload is incomplete.
+   */
+  private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+  /**
+   * How long an upload session is remembered after it was last used. Drive
+   * keeps sessions alive for about a week, DrEdit only needs to bridge
+   * client retries.
+   */
+  private static final long SESSION_TTL_MINUTES = 60;
+
+  /**
+   * Interrupted upload sessions, keyed by user id, file id and a hash of
+   * the metadata, options and content of the save.
+   */
+  private final Cache<String, Session> sessions = CacheBuilder
+      .newBuilder()
+      .expireAfterAccess(SESSION_TTL_MINUTES, TimeUnit.MINUTES)
+      .build();
+
+  /**
+   * Number of bytes sent per upload request.
+   */
+  private final int chunkSize;
+
+  /**
+   * Number of consecutive times an interrupted chunk is resumed before giving
+   * up.
+   */
+  private final int maxAttempts;
+
+  /**
+   * Creates a new uploader.
+   *
+   * @param chunkSize Number of bytes sent per upload request. Must be a
+   *        multiple of {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE}.
+   * @param maxAttempts Number of times an interrupted chunk is resumed
+   *        before the save fails.
+   */
+  public ResumableUploader(int chunkSize, int maxAttempts) {
+    if (chunkSize <= 0 || chunkSize % MediaHttpUploader.MINIMUM_CHUNK_SIZE != 0) {
+      throw new IllegalArgumentException("Chunk size must be a positive multiple of "
+          + MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    }
+    this.chunkSize = chunkSize;
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * @return Number of bytes sent per upload request.
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Updates the metadata and content of the given file.
+   *
+   * @param service Drive service to upload with.
+   * @param userId The id of the user saving the file.
+   * @param fileId ID of the file to update.
+   * @param metadata New metadata of the file.
+   * @param content New content of the file. Content that doesn't support
+   *        retries is read only once, one chunk at a time, and may be of
+   *        unknown length; its session is not kept across saves.
+   * @param newRevision Whether to create a new revision of the file.
+   * @return The updated file.
+   * @throws IOException Thrown if the upload still fails after resuming it
+   *         the allowed number of times.
+   */
+  public File update(Drive service, String userId, String fileId,
+      File metadata, AbstractInputStreamContent content, boolean newRevision)
+      throws IOException {
+    String key = content.retrySupported()
+        ? key(service, userId, fileId, metadata, content, newRevision) : null;
+    // Take the session, so that concurrent saves don't share it.
+    Session session = key != null ? sessions.asMap().remove(key) : null;
+    // A previous save of the same file was interrupted, ask Drive how far
+    // it got before sending anything.
+    boolean remembered = session != null;
+    if (session == null) {
+      session = start(service, fileId, metadata, content, newRevision);
+    }
+
+    boolean resumable = key != null;
+    try {
+      int failures = 0;
+      boolean query = remembered;
+      while (true) {
+        // Reading the content is not retried, only sending it.
+        HttpRequest request = query ? buildStatusRequest(service, session)
+            : buildChunkRequest(service, session, content);
+        HttpResponse response = null;
+        GoogleJsonResponseException error = null;
+        try {
+          response = request.execute();
+        } catch (GoogleJsonResponseException e) {
+          // Thrown by the upstream policy for a 403 error it read.
+          error = e;
+        } catch (IOException e) {
+          if (++failures >= maxAttempts) {
+            throw e;
+          }
+          // The connection dropped, ask Drive how far it got.
+          query = true;
+          continue;
+        }
+        if (error == null) {
+          int status = response.getStatusCode();
+          if (status == STATUS_RESUME_INCOMPLETE) {
+            long committed = getCommittedOffset(response);
+            response.ignore();
+            if (committed > session.committed) {
+              failures = 0;
+            } else if (!query && ++failures >= maxAttempts) {
+              // Drive keeps answering chunks without committing them.
+              throw new IOException("Upload made no progress after "
+                  + failures + " chunks");
+            }
+            session.committed = committed;
+            remembered = false;
+            query = false;
+            continue;
+          } else if (response.isSuccessStatusCode()) {
+            resumable = false;
+            return response.parseAs(File.class);
+          }
+          error = GoogleJsonResponseException.from(
+              service.getJsonFactory(), response);
+        }
+        if (error.getStatusCode() < 500) {
+          if (remembered) {
+            // The remembered session expired or was rejected, start over
+            // with a fresh one, once.
+            remembered = false;
+            resumable = false;
+            session = start(service, fileId, metadata, content, newRevision);
+            resumable = key != null;
+            failures = 0;
+            query = false;
+            continue;
+          }
+          resumable = false;
+          throw error;
+        }
+        if (++failures >= maxAttempts) {
+          throw error;
+        }
+        query = true;
+      }
+    } finally {
+      if (resumable) {
+        // Keep the session so that the next save of the same content can
+        // resume it.
+        sessions.put(key, session);
+      }
+    }
+  }
+
+  /**
+   * Initiates a resumable upload session.
+   */
+  private Session start(Drive service, String fileId, File metadata,
+      AbstractInputStreamContent content, boolean newRevision)
+      throws IOException {
+    GenericUrl url = new GenericUrl(service.getRootUrl() + "upload/"
+        + service.getServicePath() + "files/" + fileId);
+    url.put("uploadType", "resumable");
+    url.put("newRevision", newRevision);
+    url.put("fields", FieldMasks.FILE);
+    HttpRequest request = service.getRequestFactory().buildPutRequest(url,
+        new JsonHttpContent(service.getJsonFactory(), metadata));
+    request.getHeaders().set("X-Upload-Content-Type", content.getType());
+    if (content.getLength() >= 0) {
+      request.getHeaders().set("X-Upload-Content-Length", content.getLength());
+    }
+    HttpResponse response = request.execute();
+    try {
+      Session session = new Session(response.getHeaders().getLocation(),
+          content.getType(), content.getLength());
+      if (!content.retrySupported()) {
+        session.chunks = new ChunkStream(content.getInputStream(), chunkSize);
+      }
+      return session;
+    } finally {
+      response.ignore();
+    }
+  }
+
+  /**
+   * Builds the request sending the chunk following the last committed offset
+   * of the session.
+   */
+  private HttpRequest buildChunkRequest(Drive service, Session session,
+      AbstractInputStreamContent content) throws IOException {
+    long offset = session.committed;
+    HttpContent body;
+    int size;
+    if (session.chunks != null) {
+      size = session.chunks.read(offset);
+      session.length = session.chunks.getLength();
+      body = new ByteArrayContent(session.type, session.chunks.chunk, 0, size);
+    } else {
+      size = (int) Math.min(chunkSize, session.length - offset);
+      byte[] chunk = new byte[size];
+      InputStream in = content.getInputStream();
+      try {
+        skipFully(in, offset);
+        readFully(in, chunk);
+      } finally {
+        in.close();
+      }
+      body = new ByteArrayContent(session.type, chunk);
+    }
+    HttpRequest request = buildSessionRequest(service, session, body);
+    request.getHeaders().setContentRange(size == 0
+        ? "bytes */" + session.getTotal()
+        : "bytes " + offset + "-" + (offset + size - 1) + "/" + session.getTotal());
+    return request;
+  }
+
+  /**
+   * Builds the request asking Drive for the number of bytes it committed in
+   * the session.
+   */
+  private HttpRequest buildStatusRequest(Drive service, Session session)
+      throws IOException {
+    HttpRequest request = buildSessionRequest(service, session,
+        new EmptyContent());
+    request.getHeaders().setContentRange("bytes */" + session.getTotal());
+    return request;
+  }
+
+  private HttpRequest buildSessionRequest(Drive service, Session session,
+      HttpContent body) throws IOException {
+    HttpRequest request = service.getRequestFactory().buildPutRequest(
+        new GenericUrl(session.uri), body);
+    request.setParser(service.getObjectParser());
+    request.setThrowExceptionOnExecuteError(false);
+    request.setFollowRedirects(false);
+    return request;
+  }
+
+  /**
+   * Parses the Range header of an incomplete upload response.
+   */
+  private static long getCommittedOffset(HttpResponse response) {
+    String range = response.getHeaders().getRange();
+    if (range == null) {
+      return 0;
+    }
+    return Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+  }
+
+  /**
+   * Returns the key of the upload session of the given save: sessions are
+   * only resumed by saves of the same user, file, metadata, options and
+   * content.
+   */
+  private static String key(Drive service, String userId, String fileId,
+      File metadata, AbstractInputStreamContent content, boolean newRevision)
+      throws IOException {
+    Hasher hasher = Hashing.md5().newHasher()
+        .putString(service.getJsonFactory().toString(metadata), Charsets.UTF_8)
+        .putBoolean(newRevision)
+        .putString(String.valueOf(content.getType()), Charsets.UTF_8)
+        .putLong(content.getLength());
+    InputStream in = content.getInputStream();
+    try {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        hasher.putBytes(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return userId + "/" + fileId + "/" + hasher.hash();
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        throw new IOException("Content is shorter than the committed offset");
+      }
+      count -= skipped;
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] chunk) throws IOException {
+    int offset = 0;
+    while (offset < chunk.length) {
+      int read = in.read(chunk, offset, chunk.length - offset);
+      if (read == -1) {
+        throw new IOException("Content is shorter than its declared length");
+      }
+      offset += read;
+    }
+  }
+
+  /**
+   * State of a resumable upload session.
+   */
+  private static class Session {
+    final String uri;
+    final String type;
+    /** Length of the content, -1 until the end of a streamed content. */
+    volatile long length;
+    volatile long committed = 0;
+    /** Chunks of a content that can only be read once, or null. */
+    ChunkStream chunks;
+
+    Session(String uri, String type, long length) {
+      this.uri = uri;
+      this.type = type;
+      this.length = length;
+    }
+
+    /**
+     * @return Total length for a Content-Range header.
+     */
+    String getTotal() {
+      return length < 0 ? "*" : String.valueOf(length);
+    }
+  }
+
+  /**
+   * Sequential reader of the chunks of a content that can only be read once.
+   * The last chunk read is kept so that it can be resent from the offset
+   * Drive committed.
+   */
+  private static class ChunkStream {
+    final InputStream in;
+    final byte[] chunk;
+    /** Offset in the content of the first byte of the chunk. */
+    long offset = 0;
+    /** Number of bytes held in the chunk. */
+    int size = 0;
+    /** Byte read ahead of the chunk to detect the last chunk, or -1. */
+    int next = -1;
+    boolean ended = false;
+
+    ChunkStream(InputStream in, int chunkSize) {
+      this.in = in;
+      this.chunk = new byte[chunkSize];
+    }
+
+    /**
+     * Moves the chunk to the given offset, which must lie within the current
+     * chunk or right after it, and fills it.
+     *
+     * @return Number of bytes in the chunk.
+     */
+    int read(long from) throws IOException {
+      if (from < offset || from > offset + size) {
+        throw new IOException("Content can't be resent from offset " + from);
+      }
+      int kept = (int) (offset + size - from);
+      System.arraycopy(chunk, size - kept, chunk, 0, kept);
+      offset = from;
+      size = kept;
+      if (next != -1 && size < chunk.length) {
+        chunk[size++] = (byte) next;
+        next = -1;
+      }
+      while (!ended && size < chunk.length) {
+        int read = in.read(chunk, size, chunk.length - size);
+        if (read == -1) {
+          ended = true;
+        } else {
+          size += read;
+        }
+      }
+      if (!ended && next == -1) {
+        next = in.read();
+        ended = next == -1;
+      }
+      return size;
+    }
+
+    /**
+     * @return Length of the content, -1 until the last chunk was read.
+     */
+    long getLength() {
+      return ended ? offset + size : -1;
+    }
+  }
+}
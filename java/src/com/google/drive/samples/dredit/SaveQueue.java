@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Write-behind queue of file saves. Saves of the same file arriving within
+ * a delay of the first one are merged, the last one winning, and written to
+ * Drive once the delay expires. Saves of a file are written in order, and
+ * pending saves are written when the queue is shut down.
+ */
+public class SaveQueue {
+  private static final Logger LOG = Logger.getLogger(SaveQueue.class.getName());
+
+  /**
+   * Name of the context attribute holding the save queue of the
+   * application, if saves are held.
+   */
+  public static final String ATTRIBUTE = SaveQueue.class.getName();
+
+  /**
+   * Writes a save to Drive.
+   */
+  public interface Writer {
+    void write(Save save) throws IOException;
+  }
+
+  /**
+   * Milliseconds a save is held for before it is written.
+   */
+  private final long delayMillis;
+
+  /**
+   * Writer of the saves.
+   */
+  private final Writer writer;
+
+  /**
+   * Executor writing the saves once their delay expires.
+   */
+  private final ScheduledThreadPoolExecutor executor;
+
+  /**
+   * Saves waiting to be written, keyed by user id and file id.
+   */
+  private final Map<String, Save> pending = new HashMap<String, Save>();
+
+  /**
+   * Locks serializing the writes of each file.
+   */
+  private final Striped<Lock> writeLocks = Striped.lock(64);
+
+  /**
+   * Creates a new save queue.
+   * @param delayMillis Milliseconds a save is held for before it is written.
+   * @param threads Number of threads writing saves.
+   * @param threadFactory Factory of the threads writing saves.
+   * @param writer Writer of the saves.
+   */
+  public SaveQueue(long delayMillis, int threads, ThreadFactory threadFactory,
+      Writer writer) {
+    this.delayMillis = delayMillis;
+    this.writer = writer;
+    this.executor = new ScheduledThreadPoolExecutor(threads, threadFactory);
+    this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /**
+   * Queues the given save, merging it into the pending save of the same file
+   * if there is one.
+   * @param save Save to queue.
+   */
+  public void enqueue(Save save) {
+    final String key = key(save.userId, save.fileId);
+    synchronized (pending) {
+      Save queued = pending.get(key);
+      if (queued != null) {
+        pending.put(key, queued.merge(save));
+        return;
+      }
+      pending.put(key, save);
+    }
+    try {
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush(key);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down, write it right away.
+      flush(key);
+    }
+  }
+
+  /**
+   * Writes the pending save of the given file, if any, and waits for it and
+   * any save of the file being written to complete.
+   * @param userId The id of the user who saved the file.
+   * @param fileId The id of the file.
+   */
+  public void flush(String userId, String fileId) {
+    flush(key(userId, fileId));
+  }
+
+  /**
+   * Writes all pending saves and stops the queue.
+   * @param timeoutMillis Milliseconds to wait for writes in progress.
+   */
+  public void shutdown(long timeoutMillis) {
+    executor.shutdown();
+    List<String> keys;
+    synchronized (pending) {
+      keys = new ArrayList<String>(pending.keySet());
+    }
+    for (String key : keys) {
+      flush(key);
+    }
+    try {
+      executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flush(String key) {
+    Lock lock = writeLocks.get(key);
+    lock.lock();
+    try {
+      Save save;
+      synchronized (pending) {
+        save = pending.remove(key);
+      }
+      if (save != null) {
+        try {
+          writer.write(save);
+        } catch (IOException e) {
+          LOG.log(Level.SEVERE, "Failed to save file " + save.fileId, e);
+        } catch (RuntimeException e) {
+          LOG.log(Level.SEVERE, "Failed to save file " + save.fileId, e);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static String key(String userId, String fileId) {
+    return userId + "/" + fileId;
+  }
+
+  /**
+   * Save of the metadata and, optionally, the content of a file.
+   */
+  public static class Save {
+    /**
+     * The id of the user who saved the file.
+     */
+    public final String userId;
+
+    /**
+     * Drive service of the user.
+     */
+    public final Drive service;
+
+    /**
+     * The id of the file.
+     */
+    public final String fileId;
+
+    /**
+     * New metadata of the file.
+     */
+    public final File file;
+
+    /**
+     * MIME type of the content.
+     */
+    public final String mimeType;
+
+    /**
+     * New content of the file, or null to only patch its metadata.
+     */
+    public final byte[] content;
+
+    /**
+     * Whether to create a new revision of the file.
+     */
+    public final boolean newRevision;
+
+    public Save(String userId, Drive service, String fileId, File file,
+        String mimeType, byte[] content, boolean newRevision) {
+      this.userId = userId;
+      this.service = service;
+      this.fileId = fileId;
+      this.file = file;
+      this.mimeType = mimeType;
+      this.content = content;
+      this.newRevision = newRevision;
+    }
+
+    /**
+     * Returns this save overwritten by a later one. The content of this save
+     * is kept if the later one only patches metadata.
+     */
+    Save merge(Save later) {
+      if (later.content != null) {
+        return new Save(later.userId, later.service, fileId, later.file,
+            later.mimeType, later.content, newRevision || later.newRevision);
+      }
+      return new Save(later.userId, later.service, fileId, later.file,
+          mimeType, content, newRevision || later.newRevision);
+    }
+  }
+}
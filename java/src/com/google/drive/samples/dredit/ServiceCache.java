@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.oauth2.Oauth2;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of built Drive and Oauth2 service objects, keyed by user id.
+ * Service objects are bound to the credential they were built with, so an
+ * entry is rebuilt as soon as the user's access token changes.
+ */
+public class ServiceCache {
+  /**
+   * Transport layer for the built services.
+   */
+  private final HttpTransport transport;
+
+  /**
+   * JSON factory for the built services.
+   */
+  private final JsonFactory jsonFactory;
+
+  /**
+   * Cached services, keyed by user id.
+   */
+  private final Cache<String, Services> services;
+
+  /**
+   * Creates a new service cache.
+   * @param transport Transport layer for the built services.
+   * @param jsonFactory JSON factory for the built services.
+   * @param maximumSize Maximum number of users to keep services for.
+   * @param expireAfterAccessMinutes Minutes after which the services of an
+   *        inactive user are evicted.
+   */
+  public ServiceCache(HttpTransport transport, JsonFactory jsonFactory,
+      long maximumSize, long expireAfterAccessMinutes) {
+    this.transport = transport;
+    this.jsonFactory = jsonFactory;
+    this.services = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(expireAfterAccessMinutes, TimeUnit.MINUTES)
+        .build();
+  }
+
+  /**
+   * Returns the Drive service of the given user, building it if needed.
+   * @param userId The id of the user.
+   * @param credential Current credentials of the user.
+   * @return Drive service object that is ready to make requests.
+   */
+  public Drive getDrive(String userId, Credential credential) {
+    Services entry = getServices(userId, credential);
+    if (entry.drive == null) {
+      entry.drive = new Drive.Builder(transport, jsonFactory,
+          entry.initializer).build();
+    }
+    return entry.drive;
+  }
+
+  /**
+   * Returns the Oauth2 service of the given user, building it if needed.
+   * @param userId The id of the user.
+   * @param credential Current credentials of the user.
+   * @return Oauth2 service object that is ready to make requests.
+   */
+  public Oauth2 getOauth2(String userId, Credential credential) {
+    Services entry = getServices(userId, credential);
+    if (entry.oauth2 == null) {
+      entry.oauth2 = new Oauth2.Builder(transport, jsonFactory,
+          entry.initializer).build();
+    }
+    return entry.oauth2;
+  }
+
+  /**
+   * Drops the cached services of the given user.
+   * @param userId The id of the user.
+   */
+  public void invalidate(String userId) {
+    services.invalidate(userId);
+  }
+
+  /**
+   * Returns the cache entry of the given user, replacing it if it was built
+   * with another access token.
+   */
+  private Services getServices(String userId, Credential credential) {
+    Services entry = services.getIfPresent(userId);
+    if (entry == null || !Objects.equal(entry.accessToken,
+        credential.getAccessToken())) {
+      entry = new Services(userId, credential);
+      services.put(userId, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Services built for a single access token. Services are built lazily;
+   * concurrent requests may build one twice, which is harmless.
+   */
+  private static class Services {
+    final HttpRequestInitializer initializer;
+    final String accessToken;
+    volatile Drive drive;
+    volatile Oauth2 oauth2;
+
+    Services(String userId, Credential credential) {
+      this.initializer = UpstreamPolicy.initializer(userId, credential);
+      this.accessToken = credential.getAccessToken();
+    }
+  }
+}
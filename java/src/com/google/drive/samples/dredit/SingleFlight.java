@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Registry of in-flight calls, so that concurrent identical calls share a
+ * single execution. The first caller of a key runs the call on its own
+ * thread; callers arriving while it runs wait for and share its result or
+ * failure.
+ *
+ * @param <K> Type of the keys identifying calls.
+ * @param <V> Type of the call results.
+ */
+public class SingleFlight<K, V> {
+  /**
+   * Calls in flight, keyed by their identity.
+   */
+  private final ConcurrentMap<K, FutureTask<V>> calls =
+      new ConcurrentHashMap<K, FutureTask<V>>();
+
+  /**
+   * Runs the given call, or waits for the identical call in flight.
+   * @param key Identity of the call, or null to run it without sharing.
+   * @param callable Call to run if none is in flight.
+   * @return Result of the call.
+   * @throws IOException Thrown if the call failed.
+   */
+  public V execute(K key, Callable<V> callable) throws IOException {
+    FutureTask<V> task = new FutureTask<V>(callable);
+    FutureTask<V> running = key != null ? calls.putIfAbsent(key, task) : null;
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        if (key != null) {
+          calls.remove(key, task);
+        }
+      }
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + key);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+}
@@ -15,11 +15,17 @@
 package com.google.drive.samples.dredit;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.oauth2.Oauth2;
+import com.google.api.services.oauth2.model.Userinfo;
 import com.google.drive.samples.dredit.model.State;
 
 /**
@@ -58,7 +64,56 @@ public class StartPageServlet extends DrEditServlet {
         return;
       }
     }
-    req.getRequestDispatcher("/public/index.html").forward(req, resp);
+    // Start fetching the profile and About feed the client asks for on
+    // start, so that they are cached or in flight by then. This is best
+    // effort, the page is not held back for them.
+    UpstreamExecutor prefetch = prefetchProfile(req, resp);
+    try {
+      req.getRequestDispatcher("/public/index.html").forward(req, resp);
+    } finally {
+      if (prefetch != null) {
+        prefetch.detach();
+      }
+    }
+  }
+
+  /**
+   * Starts loading the profile and About feed of the user in session into
+   * the profile cache, on the shared upstream pool so that the loads complete
+   * after the page is sent. Calls on request threads would have to be
+   * cancelled with the request, so there is no prefetch in request mode: the
+   * client's own /user and /about requests fill the cache then.
+   * @param req   Request object.
+   * @param resp  Response object.
+   * @return      Executor running the loads, or null if no user is logged in
+   *              or upstream calls run on request threads.
+   */
+  private UpstreamExecutor prefetchProfile(HttpServletRequest req,
+      HttpServletResponse resp) {
+    if (!UpstreamExecutor.isShared()) {
+      return null;
+    }
+    final String userId = getUserId(req);
+    Credential credential = getCredential(req, resp);
+    if (credential == null) {
+      return null;
+    }
+    final Oauth2 oauth2 = getOauth2Service(userId, credential);
+    final Drive drive = getDriveService(userId, credential);
+    UpstreamExecutor executor = UpstreamExecutor.create("dredit-prefetch", 2);
+    executor.submit(new Callable<Userinfo>() {
+      @Override
+      public Userinfo call() throws IOException {
+        return getUserinfo(userId, oauth2);
+      }
+    });
+    executor.submit(new Callable<About>() {
+      @Override
+      public About call() throws IOException {
+        return getAbout(userId, drive);
+      }
+    });
+    return executor;
   }
 
 }
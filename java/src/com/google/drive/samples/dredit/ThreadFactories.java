@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Thread factories that work both on App Engine, where threads must be
+ * created through the {@link ThreadManager}, and in a plain servlet
+ * container.
+ */
+final class ThreadFactories {
+  private ThreadFactories() {
+  }
+
+  /**
+   * Returns a factory of threads that may outlive the request creating them.
+   * On App Engine, these are only available on backend instances.
+   *
+   * @param name Prefix of the names of the created threads.
+   * @return Factory of background threads.
+   */
+  static ThreadFactory background(String name) {
+    if (SystemProperty.environment.value() != null) {
+      return ThreadManager.backgroundThreadFactory();
+    }
+    return daemon(name);
+  }
+
+  /**
+   * Returns a factory of threads that do not outlive the current request.
+   * On App Engine, these may call App Engine APIs on behalf of the request.
+   *
+   * @param name Prefix of the names of the created threads.
+   * @return Factory of request threads.
+   */
+  static ThreadFactory request(String name) {
+    if (ApiProxy.getCurrentEnvironment() != null) {
+      return ThreadManager.currentRequestThreadFactory();
+    }
+    return daemon(name);
+  }
+
+  /**
+   * Returns a factory of daemon threads named after the given prefix.
+   */
+  private static ThreadFactory daemon(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable,
+            name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
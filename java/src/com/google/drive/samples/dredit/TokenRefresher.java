@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+/**
+ * Background refresher of the access tokens of active users. Tokens are
+ * refreshed shortly before they expire, so that user requests never wait
+ * for a refresh or fail with an expired token. Each run refreshes the due
+ * tokens, soonest to expire first, up to a maximum; the refresh window of
+ * each token is randomly extended so that tokens obtained together are not
+ * all refreshed in the same run.
+ */
+public class TokenRefresher {
+  private static final Logger LOG =
+      Logger.getLogger(TokenRefresher.class.getName());
+
+  /**
+   * Manager of the credentials to refresh.
+   */
+  private final CredentialManager credentialManager;
+
+  /**
+   * Seconds before expiry from which a token is refreshed.
+   */
+  private final long refreshWindowSeconds;
+
+  /**
+   * Maximum number of seconds randomly added to the refresh window.
+   */
+  private final long jitterSeconds;
+
+  /**
+   * Maximum number of tokens refreshed by one run.
+   */
+  private final int maxRefreshesPerRun;
+
+  private final Random random = new Random();
+
+  /**
+   * Executor of the runs, or null if the refresher is stopped.
+   */
+  private ScheduledExecutorService executor = null;
+
+  /**
+   * Creates a new token refresher.
+   * @param credentialManager Manager of the credentials to refresh.
+   * @param refreshWindowSeconds Seconds before expiry from which a token is
+   *        refreshed. Must exceed the interval between runs plus the minute
+   *        before expiry at which requests refresh the token themselves.
+   * @param jitterSeconds Maximum number of seconds randomly added to the
+   *        refresh window.
+   * @param maxRefreshesPerRun Maximum number of tokens refreshed by one run.
+   */
+  public TokenRefresher(CredentialManager credentialManager,
+      long refreshWindowSeconds, long jitterSeconds, int maxRefreshesPerRun) {
+    this.credentialManager = credentialManager;
+    this.refreshWindowSeconds = refreshWindowSeconds;
+    this.jitterSeconds = jitterSeconds;
+    this.maxRefreshesPerRun = maxRefreshesPerRun;
+  }
+
+  /**
+   * Starts refreshing tokens periodically.
+   * @param intervalSeconds Seconds between runs.
+   * @param threadFactory Factory of the refreshing thread.
+   */
+  public synchronized void start(long intervalSeconds,
+      ThreadFactory threadFactory) {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refreshDueTokens();
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Token refresh run failed", e);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops refreshing tokens.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Refreshes the tokens of active users that are about to expire.
+   * @return Number of tokens refreshed.
+   */
+  public int refreshDueTokens() {
+    List<Map.Entry<String, Credential>> due =
+        new ArrayList<Map.Entry<String, Credential>>();
+    for (Map.Entry<String, Credential> entry
+        : credentialManager.getActiveCredentials().entrySet()) {
+      Credential credential = entry.getValue();
+      Long expiresIn = credential.getExpiresInSeconds();
+      if (credential.getRefreshToken() != null && expiresIn != null
+          && expiresIn <= refreshWindowSeconds + jitter()) {
+        due.add(entry);
+      }
+    }
+    Collections.sort(due, new Comparator<Map.Entry<String, Credential>>() {
+      @Override
+      public int compare(Map.Entry<String, Credential> a,
+          Map.Entry<String, Credential> b) {
+        return a.getValue().getExpirationTimeMilliseconds().compareTo(
+            b.getValue().getExpirationTimeMilliseconds());
+      }
+    });
+    int refreshed = 0;
+    for (Map.Entry<String, Credential> entry : due) {
+      if (refreshed == maxRefreshesPerRun) {
+        break;
+      }
+      try {
+        // The credential saves the new token to the credential store.
+        if (entry.getValue().refreshToken()) {
+          refreshed++;
+        } else {
+          LOG.info("Token of " + entry.getKey() + " could not be refreshed");
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Can't refresh the token of " + entry.getKey(),
+            e);
+      }
+    }
+    return refreshed;
+  }
+
+  private synchronized long jitter() {
+    return jitterSeconds > 0 ? (long) (random.nextDouble() * jitterSeconds) : 0;
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+/**
+ * Factory of the HTTP transport shared by all servlets, configured with
+ * system properties (set in appengine-web.xml) since the transport is built
+ * before any servlet context exists.
+ *
+ * <p>The default "net" transport uses {@code HttpURLConnection}, which on
+ * App Engine goes through URL Fetch. The "apache" transport keeps a pool of
+ * keep-alive connections, bounded per host, that are closed once idle; it
+ * needs sockets, which App Engine only allows to billed applications.
+ */
+final class Transports {
+  private static final Logger LOG =
+      Logger.getLogger(Transports.class.getName());
+
+  /**
+   * System property selecting the transport: "net" or "apache".
+   */
+  static final String PROPERTY_TRANSPORT = "dredit.transport";
+
+  /**
+   * System property setting the maximum number of pooled connections.
+   */
+  static final String PROPERTY_MAX_CONNECTIONS =
+      "dredit.transport.maxConnections";
+
+  /**
+   * System property setting the maximum number of pooled connections to a
+   * single host.
+   */
+  static final String PROPERTY_MAX_CONNECTIONS_PER_HOST =
+      "dredit.transport.maxConnectionsPerHost";
+
+  /**
+   * System property setting the seconds after which an idle pooled
+   * connection is closed.
+   */
+  static final String PROPERTY_IDLE_TIMEOUT = "dredit.transport.idleTimeout";
+
+  /**
+   * System property setting the milliseconds to wait for a connection to be
+   * established.
+   */
+  static final String PROPERTY_CONNECT_TIMEOUT =
+      "dredit.transport.connectTimeout";
+
+  /**
+   * System property setting the milliseconds to wait for data on an
+   * established connection.
+   */
+  static final String PROPERTY_READ_TIMEOUT = "dredit.transport.readTimeout";
+
+  /**
+   * Number of requests sent by the pooled transport.
+   */
+  private static final AtomicLong requests = new AtomicLong();
+
+  /**
+   * Number of connections opened by the pooled transport. Requests not
+   * opening a connection reused a pooled one.
+   */
+  private static final AtomicLong connections = new AtomicLong();
+
+  private Transports() {
+  }
+
+  /**
+   * Creates the transport selected by the system properties.
+   * @return HTTP transport safe to share between threads.
+   */
+  static HttpTransport create() {
+    String transport = System.getProperty(PROPERTY_TRANSPORT, "net").trim();
+    if ("net".equals(transport)) {
+      return new NetHttpTransport();
+    } else if ("apache".equals(transport)) {
+      return createPooled(getInt(PROPERTY_MAX_CONNECTIONS, 100),
+          getInt(PROPERTY_MAX_CONNECTIONS_PER_HOST, 20),
+          getInt(PROPERTY_IDLE_TIMEOUT, 30),
+          getInt(PROPERTY_CONNECT_TIMEOUT, 20000),
+          getInt(PROPERTY_READ_TIMEOUT, 20000));
+    }
+    throw new RuntimeException("Unknown transport " + transport);
+  }
+
+  /**
+   * Creates a transport keeping a pool of keep-alive connections.
+   * @param maxConnections Maximum number of pooled connections.
+   * @param maxConnectionsPerHost Maximum number of pooled connections to a
+   *        single host.
+   * @param idleTimeoutSeconds Seconds after which an idle connection is
+   *        closed.
+   * @param connectTimeoutMillis Milliseconds to wait for a connection to be
+   *        established, or for a pooled connection to be free.
+   * @param readTimeoutMillis Milliseconds to wait for data.
+   * @return Pooled HTTP transport.
+   */
+  static HttpTransport createPooled(int maxConnections,
+      int maxConnectionsPerHost, final int idleTimeoutSeconds,
+      int connectTimeoutMillis, int readTimeoutMillis) {
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    HttpConnectionParams.setSocketBufferSize(params, 8192);
+    HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+    HttpConnectionParams.setSoTimeout(params, readTimeoutMillis);
+    ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+    ConnManagerParams.setMaxConnectionsPerRoute(params,
+        new ConnPerRouteBean(maxConnectionsPerHost));
+    ConnManagerParams.setTimeout(params, connectTimeoutMillis);
+
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(
+        new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    schemes.register(
+        new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+    final ThreadSafeClientConnManager connectionManager =
+        new ThreadSafeClientConnManager(params, schemes) {
+          @Override
+          protected ClientConnectionOperator createConnectionOperator(
+              SchemeRegistry schemes) {
+            return new DefaultClientConnectionOperator(schemes) {
+              @Override
+              public OperatedClientConnection createConnection() {
+                connections.incrementAndGet();
+                return super.createConnection();
+              }
+            };
+          }
+        };
+    DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+    // Retries are left to the request initializers.
+    client.setHttpRequestRetryHandler(
+        new DefaultHttpRequestRetryHandler(0, false));
+    client.addRequestInterceptor(new HttpRequestInterceptor() {
+      /**
+       * Time after which idle connections are next looked for, in
+       * nanoseconds.
+       */
+      private final AtomicLong nextEviction = new AtomicLong(System.nanoTime());
+
+      @Override
+      public void process(HttpRequest request, HttpContext context)
+          throws HttpException, IOException {
+        requests.incrementAndGet();
+        // Close idle connections from request threads, as App Engine may
+        // not allow background threads.
+        long now = System.nanoTime();
+        long next = nextEviction.get();
+        if (now - next >= 0 && nextEviction.compareAndSet(next,
+            now + TimeUnit.SECONDS.toNanos(idleTimeoutSeconds))) {
+          connectionManager.closeExpiredConnections();
+          connectionManager.closeIdleConnections(idleTimeoutSeconds,
+              TimeUnit.SECONDS);
+          LOG.fine(getStats());
+        }
+      }
+    });
+    return new ApacheHttpTransport(client);
+  }
+
+  /**
+   * Returns an initializer applying the configured connect and read
+   * timeouts to each request, after the given initializer.
+   * @param delegate Initializer to run first, usually a credential.
+   * @return Request initializer.
+   */
+  static HttpRequestInitializer withTimeouts(
+      final HttpRequestInitializer delegate) {
+    final int connectTimeout = getInt(PROPERTY_CONNECT_TIMEOUT, 20000);
+    final int readTimeout = getInt(PROPERTY_READ_TIMEOUT, 20000);
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(com.google.api.client.http.HttpRequest request)
+          throws IOException {
+        if (delegate != null) {
+          delegate.initialize(request);
+        }
+        request.setConnectTimeout(connectTimeout);
+        request.setReadTimeout(readTimeout);
+      }
+    };
+  }
+
+  /**
+   * Returns a description of the connection reuse of pooled transports.
+   */
+  static String getStats() {
+    long sent = requests.get();
+    long opened = connections.get();
+    return sent + " requests sent over " + opened + " connections, "
+        + (sent > 0 ? 100 * Math.max(0, sent - opened) / sent : 0)
+        + "% reused";
+  }
+
+  /**
+   * Returns the value of the given system property as an integer.
+   */
+  private static int getInt(String name, int defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("System property " + name
+          + " must be an integer");
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Executor of the upstream calls made on behalf of one request. In
+ * {@link #MODE_REQUEST} mode, each request runs its calls on threads of its
+ * own, which is what App Engine front-end instances allow. In
+ * {@link #MODE_SHARED} mode, calls run on a pool shared by the application,
+ * which saves creating threads for every request.
+ */
+final class UpstreamExecutor implements Executor {
+  /**
+   * Mode running the calls of each request on threads of its own.
+   */
+  static final String MODE_REQUEST = "request";
+
+  /**
+   * Mode running the calls of all requests on a shared pool.
+   */
+  static final String MODE_SHARED = "shared";
+
+  /**
+   * Pool shared by all requests, or null in {@link #MODE_REQUEST} mode.
+   */
+  private static ExecutorService sharedPool = null;
+
+  /**
+   * Executor running the calls.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * Whether {@link #executor} belongs to this request.
+   */
+  private final boolean owned;
+
+  /**
+   * Calls submitted so far.
+   */
+  private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+  private UpstreamExecutor(ExecutorService executor, boolean owned) {
+    this.executor = executor;
+    this.owned = owned;
+  }
+
+  /**
+   * Sets the execution mode of all upstream executors created from now on.
+   * @param mode {@link #MODE_REQUEST} or {@link #MODE_SHARED}.
+   * @param threads Size of the shared pool.
+   */
+  static synchronized void configure(String mode, int threads) {
+    if (MODE_SHARED.equals(mode)) {
+      if (sharedPool == null) {
+        sharedPool = Executors.newFixedThreadPool(threads,
+            ThreadFactories.background("dredit-upstream"));
+      }
+    } else if (MODE_REQUEST.equals(mode)) {
+      if (sharedPool != null) {
+        sharedPool.shutdown();
+        sharedPool = null;
+      }
+    } else {
+      throw new RuntimeException("Unknown upstream execution mode " + mode);
+    }
+  }
+
+  /**
+   * Creates the executor of the upstream calls of the current request.
+   * @param name Prefix of the names of the threads created for the request.
+   * @param parallelism Number of calls run at once, in
+   *        {@link #MODE_REQUEST} mode.
+   * @return Upstream executor, to be closed before the request completes.
+   */
+  static synchronized UpstreamExecutor create(String name, int parallelism) {
+    if (sharedPool != null) {
+      return new UpstreamExecutor(sharedPool, false);
+    }
+    return new UpstreamExecutor(Executors.newFixedThreadPool(parallelism,
+        ThreadFactories.request(name)), true);
+  }
+
+  /**
+   * @return Whether calls run on the pool shared by the application, and may
+   *         thus outlive the request that submitted them.
+   */
+  static synchronized boolean isShared() {
+    return sharedPool != null;
+  }
+
+  /**
+   * Submits an upstream call.
+   * @param task Call to run.
+   * @return Future result of the call.
+   */
+  synchronized <T> Future<T> submit(Callable<T> task) {
+    Future<T> future = executor.submit(task);
+    futures.add(future);
+    return future;
+  }
+
+  @Override
+  public synchronized void execute(Runnable command) {
+    futures.add(executor.submit(command));
+  }
+
+  /**
+   * Waits for the submitted calls to complete, whether they succeed or not.
+   * @param timeout Maximum time to wait.
+   * @param unit Unit of the timeout.
+   */
+  void awaitCompletion(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    List<Future<?>> pending;
+    synchronized (this) {
+      pending = new ArrayList<Future<?>>(futures);
+    }
+    for (Future<?> future : pending) {
+      try {
+        future.get(Math.max(0, deadline - System.nanoTime()),
+            TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        // Failures are reported to whoever takes the result, wait for the
+        // other calls.
+      } catch (CancellationException e) {
+        // Cancelled calls have nothing left to wait for.
+      } catch (TimeoutException e) {
+        // Give up waiting, the calls are cancelled on close.
+        return;
+      }
+    }
+  }
+
+  /**
+   * Releases the executor without waiting for the submitted calls. On the
+   * shared pool they complete in the background; calls running on threads of
+   * the request cannot outlive it and are cancelled, so only detach in
+   * {@link #MODE_SHARED} mode calls whose result may be lost.
+   */
+  void detach() {
+    if (owned) {
+      close();
+    }
+  }
+
+  /**
+   * Cancels the calls that did not complete and releases the threads of the
+   * request.
+   */
+  synchronized void close() {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+    if (owned) {
+      executor.shutdownNow();
+    }
+  }
+}
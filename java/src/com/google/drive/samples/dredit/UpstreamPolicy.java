@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.JsonFactory;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Policy applied to every upstream request: requests are rate limited per
+ * user and per instance to stay under the Drive quota, and throttled or
+ * failed requests (429, 5xx and 403 rate limit errors) are retried after an
+ * exponential backoff with full jitter. Retries draw from a budget refilled
+ * by first attempts, so that an outage doesn't multiply the load sent
+ * upstream. Each part of a batch is limited and retried as a request of its
+ * own, since Drive charges the quota part by part.
+ */
+final class UpstreamPolicy {
+  private static final Logger LOG =
+      Logger.getLogger(UpstreamPolicy.class.getName());
+
+  /**
+   * Policy applied to the requests of all services.
+   */
+  private static volatile UpstreamPolicy current =
+      new UpstreamPolicy(DrEditServlet.JSON_FACTORY, 3, 500, 30000, 10, 0, 10,
+          10000);
+
+  /**
+   * Maximum number of retries of a request.
+   */
+  private final int maxRetries;
+
+  /**
+   * Backoff of the first retry in milliseconds, doubled for each retry.
+   */
+  private final long baseBackOffMillis;
+
+  /**
+   * Maximum backoff in milliseconds.
+   */
+  private final long maxBackOffMillis;
+
+  /**
+   * Retries allowed per first attempt.
+   */
+  private final double retryRatio;
+
+  /**
+   * Budget the retries are taken from.
+   */
+  private final RetryBudget retryBudget;
+
+  /**
+   * Limiter of the requests of this instance, or null if unlimited.
+   */
+  private final RateLimiter globalLimiter;
+
+  /**
+   * Limiters of the requests of each user, or null if unlimited.
+   */
+  private final LoadingCache<String, RateLimiter> userLimiters;
+
+  /**
+   * Milliseconds a request waits for the rate limiters before failing.
+   */
+  private final long maxWaitMillis;
+
+  private final JsonFactory jsonFactory;
+  private final Random random = new Random();
+
+  /**
+   * Counters of first attempts, retries, and retries denied by the budget.
+   */
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong deniedRetries = new AtomicLong();
+
+  /**
+   * Creates a new policy.
+   * @param jsonFactory JSON factory parsing error responses.
+   * @param maxRetries Maximum number of retries of a request.
+   * @param baseBackOffMillis Backoff of the first retry in milliseconds.
+   * @param maxBackOffMillis Maximum backoff in milliseconds.
+   * @param retryPercent Retries allowed per 100 first attempts.
+   * @param globalRate Requests per second of this instance, 0 for unlimited.
+   * @param userRate Requests per second of each user, 0 for unlimited.
+   * @param maxWaitMillis Milliseconds a request waits for the rate limiters
+   *        before failing.
+   */
+  UpstreamPolicy(JsonFactory jsonFactory, int maxRetries,
+      long baseBackOffMillis, long maxBackOffMillis, int retryPercent,
+      double globalRate, final double userRate, long maxWaitMillis) {
+    this.jsonFactory = jsonFactory;
+    this.maxRetries = maxRetries;
+    this.baseBackOffMillis = baseBackOffMillis;
+    this.maxBackOffMillis = maxBackOffMillis;
+    this.retryRatio = retryPercent / 100.0;
+    // Allow a few retries before any request has been made.
+    this.retryBudget = new RetryBudget(10, 100);
+    this.globalLimiter = globalRate > 0 ? RateLimiter.create(globalRate) : null;
+    this.userLimiters = userRate <= 0 ? null : CacheBuilder.newBuilder()
+        .maximumSize(10000)
+        .expireAfterAccess(10, TimeUnit.MINUTES)
+        .build(new CacheLoader<String, RateLimiter>() {
+          @Override
+          public RateLimiter load(String userId) {
+            return RateLimiter.create(userRate);
+          }
+        });
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  /**
+   * Sets the policy applied to the requests of services built from now on.
+   * @param policy Policy to apply.
+   */
+  static void configure(UpstreamPolicy policy) {
+    current = policy;
+  }
+
+  /**
+   * Returns an initializer applying the current policy to the requests of
+   * the given user, after the given initializer.
+   * @param userId The id of the user, or null to only apply the limit of
+   *        the instance.
+   * @param delegate Initializer to run first, usually a credential.
+   * @return Request initializer.
+   */
+  static HttpRequestInitializer initializer(final String userId,
+      final HttpRequestInitializer delegate) {
+    final UpstreamPolicy policy = current;
+    final HttpRequestInitializer timeouts = Transports.withTimeouts(delegate);
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        timeouts.initialize(request);
+        policy.apply(userId, true, request);
+      }
+    };
+  }
+
+  /**
+   * Returns an initializer applying the current policy to the envelope of a
+   * batch. The envelope is not rate limited, its parts are, and it is only
+   * retried as a whole when it fails as a whole.
+   * @return Request initializer.
+   */
+  static HttpRequestInitializer batchInitializer() {
+    final UpstreamPolicy policy = current;
+    final HttpRequestInitializer timeouts = Transports.withTimeouts(null);
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        timeouts.initialize(request);
+        policy.apply(null, false, request);
+      }
+    };
+  }
+
+  /**
+   * Returns a description of the retries of the current policy.
+   */
+  static String getStats() {
+    UpstreamPolicy policy = current;
+    return policy.requests.get() + " requests, " + policy.retries.get()
+        + " retries, " + policy.deniedRetries.get()
+        + " retries denied by the budget";
+  }
+
+  /**
+   * Wraps the interceptor and unsuccessful response handler of the given
+   * request.
+   * @param userId The id of the user, or null.
+   * @param limited Whether the request is rate limited and counted against
+   *        the retry budget, false for the envelope of a batch.
+   * @param request Request to apply the policy to.
+   */
+  private void apply(String userId, boolean limited, HttpRequest request) {
+    request.setNumberOfRetries(Math.max(maxRetries,
+        request.getNumberOfRetries()));
+    Attempts attempts = new Attempts(userId, limited,
+        request.getInterceptor(), request.getUnsuccessfulResponseHandler());
+    request.setInterceptor(attempts);
+    request.setUnsuccessfulResponseHandler(attempts);
+  }
+
+  /**
+   * Attempts of one request. Before each attempt, it waits for the backoff
+   * of the previous one and for the rate limiters; the first attempt is
+   * counted against the retry budget. Throttled or failed responses are
+   * retried after a backoff, other unsuccessful responses are left to the
+   * caller.
+   *
+   * <p>The backoff is waited before the next attempt rather than when the
+   * response is handled, so that the failed parts of a batch, whose
+   * responses are handled one after the other, back off together before the
+   * batch is sent again.
+   */
+  private class Attempts
+      implements HttpExecuteInterceptor, HttpUnsuccessfulResponseHandler {
+    private final String userId;
+    private final boolean limited;
+    private final HttpExecuteInterceptor interceptor;
+    private final HttpUnsuccessfulResponseHandler handler;
+    private boolean started = false;
+    private int retries = 0;
+    private long retryAt = 0;
+
+    Attempts(String userId, boolean limited,
+        HttpExecuteInterceptor interceptor,
+        HttpUnsuccessfulResponseHandler handler) {
+      this.userId = userId;
+      this.limited = limited;
+      this.interceptor = interceptor;
+      this.handler = handler;
+    }
+
+    @Override
+    public void intercept(HttpRequest request) throws IOException {
+      if (!started) {
+        started = true;
+        if (limited) {
+          requests.incrementAndGet();
+          retryBudget.deposit(retryRatio);
+        }
+      } else {
+        sleep(TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()));
+      }
+      if (limited) {
+        acquire(userId);
+      }
+      if (interceptor != null) {
+        interceptor.intercept(request);
+      }
+    }
+
+    @Override
+    public boolean handleResponse(HttpRequest request, HttpResponse response,
+        boolean supportsRetry) throws IOException {
+      if (handler != null
+          && handler.handleResponse(request, response, supportsRetry)) {
+        // Handled by the credential, e.g. an expired token refreshed.
+        retryAt = 0;
+        return true;
+      }
+      int status = response.getStatusCode();
+      if ((status != 403 && status != 429 && status < 500)
+          || !supportsRetry || retries >= maxRetries) {
+        return false;
+      }
+      if (status == 403) {
+        // Rate limit errors are only told apart from other 403 errors by
+        // their reason, read from the body.
+        InputStream content = response.getContent();
+        if (content == null || !content.markSupported()) {
+          // A streamed body cannot be rewound: an error that is not retried
+          // is thrown from here with its details, as the caller would have
+          // thrown it.
+          GoogleJsonResponseException error =
+              GoogleJsonResponseException.from(jsonFactory, response);
+          if (!isRateLimitError(error.getDetails()) || !takeRetry()) {
+            throw error;
+          }
+          backOff();
+          return true;
+        }
+        // A buffered body, such as a part of a batch, is rewound so that
+        // the caller still reads the error.
+        content.mark(Integer.MAX_VALUE);
+        GoogleJsonError details =
+            GoogleJsonResponseException.from(jsonFactory, response)
+                .getDetails();
+        content.reset();
+        if (!isRateLimitError(details)) {
+          return false;
+        }
+      }
+      if (!takeRetry()) {
+        return false;
+      }
+      backOff();
+      return true;
+    }
+
+    /**
+     * Sets the time of the next attempt.
+     */
+    private void backOff() {
+      retryAt = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(backOffMillis(retries++));
+    }
+  }
+
+  /**
+   * Waits for the rate limiters to let a request of the given user through.
+   */
+  private void acquire(String userId) throws IOException {
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    if (userLimiters != null && userId != null
+        && !userLimiters.getUnchecked(userId).tryAcquire(maxWaitMillis,
+            TimeUnit.MILLISECONDS)) {
+      throw new IOException("Request rate limit of user " + userId
+          + " exceeded");
+    }
+    if (globalLimiter != null && !globalLimiter.tryAcquire(
+        Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+      throw new IOException("Request rate limit exceeded");
+    }
+  }
+
+  /**
+   * Takes a retry from the budget.
+   */
+  private boolean takeRetry() {
+    if (retryBudget.withdraw()) {
+      retries.incrementAndGet();
+      return true;
+    }
+    deniedRetries.incrementAndGet();
+    LOG.fine("Retry budget exhausted, not retrying: " + getStats());
+    return false;
+  }
+
+  /**
+   * Returns a random backoff between 0 and the exponential backoff of the
+   * given retry, so that throttled clients don't retry in lockstep.
+   */
+  private long backOffMillis(int retry) {
+    long ceiling = Math.min(maxBackOffMillis,
+        baseBackOffMillis << Math.min(retry, 20));
+    synchronized (random) {
+      return (long) (random.nextDouble() * ceiling);
+    }
+  }
+
+  private static boolean isRateLimitError(GoogleJsonError details) {
+    if (details == null || details.getErrors() == null) {
+      return false;
+    }
+    for (GoogleJsonError.ErrorInfo info : details.getErrors()) {
+      if ("rateLimitExceeded".equals(info.getReason())
+          || "userRateLimitExceeded".equals(info.getReason())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void sleep(long millis) throws IOException {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while backing off");
+    }
+  }
+
+  /**
+   * Token bucket of retries, refilled by fractions of a token as first
+   * attempts are made.
+   */
+  private static class RetryBudget {
+    private final double capacity;
+    private double tokens;
+
+    RetryBudget(double initial, double capacity) {
+      this.tokens = initial;
+      this.capacity = capacity;
+    }
+
+    synchronized void deposit(double amount) {
+      tokens = Math.min(capacity, tokens + amount);
+    }
+
+    synchronized boolean withdraw() {
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+  }
+}
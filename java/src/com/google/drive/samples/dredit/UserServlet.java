@@ -36,10 +36,10 @@ public class UserServlet extends DrEditServlet {
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
-  	Oauth2 service = getOauth2Service(getCredential(req, resp));
+  	Oauth2 service = getOauth2Service(req, resp);
     try {
-      Userinfo about = service.userinfo().get().execute();
-      sendJson(resp, about);
+      Userinfo about = getUserinfo(getUserId(req), service);
+      sendJsonIfModified(req, resp, about);
     } catch (GoogleJsonResponseException e) {
       if (e.getStatusCode() == 401) {
         // The user has revoked our token or it is otherwise bad.
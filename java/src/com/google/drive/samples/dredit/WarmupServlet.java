@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.oauth2.Oauth2;
+import com.google.api.services.oauth2.model.Userinfo;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.common.base.Charsets;
+import com.google.drive.samples.dredit.model.ClientFile;
+import com.google.drive.samples.dredit.model.ClientFileReader;
+import com.google.drive.samples.dredit.model.ClientFileWriter;
+import com.google.drive.samples.dredit.model.DrEditGson;
+import com.google.gson.Gson;
+
+/**
+ * Servlet handling App Engine warm-up requests, and loaded on startup in
+ * other containers. It loads the classes the first user requests need,
+ * runs the JSON parsers and serializers over representative payloads and
+ * opens a connection to the Google APIs, so that the first user request on
+ * a new instance doesn't pay for it.
+ */
+@SuppressWarnings("serial")
+public class WarmupServlet extends HttpServlet {
+  private static final Logger LOG =
+      Logger.getLogger(WarmupServlet.class.getName());
+
+  /**
+   * Name of the init parameter setting the URL requested to open a
+   * connection to the Google APIs. An empty value skips it.
+   */
+  public static final String PARAM_URL = "url";
+
+  /**
+   * Name of the init parameter setting the connect and read timeouts, in
+   * milliseconds, of the warm-up request, so that an unreachable host
+   * doesn't hold up the instance start.
+   */
+  public static final String PARAM_TIMEOUT = "timeout";
+
+  private static final String FILE_JSON = "{\"id\":\"warmup\","
+      + "\"title\":\"warmup.txt\",\"description\":\"\","
+      + "\"mimeType\":\"text/plain\",\"md5Checksum\":\"\","
+      + "\"modifiedDate\":\"2012-01-01T00:00:00.000Z\",\"editable\":true,"
+      + "\"downloadUrl\":\"https://example.com/warmup\",\"fileSize\":\"6\","
+      + "\"labels\":{\"starred\":false,\"trashed\":false},"
+      + "\"parents\":[{\"id\":\"root\",\"isRoot\":true}]}";
+
+  private static final String ABOUT_JSON = "{\"name\":\"warmup\","
+      + "\"quotaBytesTotal\":\"0\",\"quotaBytesUsed\":\"0\","
+      + "\"rootFolderId\":\"root\",\"permissionId\":\"warmup\"}";
+
+  private static final String USERINFO_JSON = "{\"id\":\"warmup\","
+      + "\"email\":\"warmup@example.com\",\"name\":\"warmup\","
+      + "\"picture\":\"https://example.com/warmup.png\","
+      + "\"link\":\"https://example.com/warmup\"}";
+
+  /**
+   * Warms up the instance when the servlet is loaded.
+   */
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    long start = System.nanoTime();
+    try {
+      warmUpJson();
+      warmUpServices();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Warm-up failed", e);
+    }
+    String url = getInitParameter(PARAM_URL);
+    if (url != null && url.trim().length() > 0
+        && SystemProperty.environment.value()
+            != SystemProperty.Environment.Value.Development) {
+      String timeout = getInitParameter(PARAM_TIMEOUT);
+      warmUpConnection(url.trim(),
+          timeout != null ? Integer.parseInt(timeout.trim()) : 2000);
+    }
+    LOG.info("Warmed up in " + TimeUnit.NANOSECONDS.toMillis(
+        System.nanoTime() - start) + " ms");
+  }
+
+  /**
+   * Acknowledges warm-up requests, the work having been done on load.
+   */
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    resp.setContentType("text/plain");
+    resp.getWriter().write("OK");
+  }
+
+  /**
+   * Parses and serializes representative Drive and Oauth2 payloads, and the
+   * files exchanged with the DrEdit JavaScript client.
+   */
+  private void warmUpJson() throws IOException {
+    JsonFactory jsonFactory = DrEditServlet.JSON_FACTORY;
+    File file = jsonFactory.fromString(FILE_JSON, File.class);
+    jsonFactory.toString(file);
+    jsonFactory.toString(jsonFactory.fromString(ABOUT_JSON, About.class));
+    jsonFactory.toString(
+        jsonFactory.fromString(USERINFO_JSON, Userinfo.class));
+
+    Gson gson = DrEditGson.get();
+    StringWriter out = new StringWriter();
+    new ClientFileWriter(gson).write(new ClientFile(file, null),
+        new ByteArrayInputStream("warmup".getBytes(Charsets.UTF_8)), out);
+    new ClientFileReader(new StringReader(out.toString())).read(gson);
+  }
+
+  /**
+   * Builds the Drive and Oauth2 requests the servlets make, without
+   * executing them.
+   */
+  private void warmUpServices() throws IOException {
+    Drive drive = new Drive.Builder(DrEditServlet.TRANSPORT,
+        DrEditServlet.JSON_FACTORY, null).build();
+    drive.files().get("warmup").setFields(FieldMasks.FILE).buildHttpRequest();
+    drive.about().get().setFields(FieldMasks.ABOUT).buildHttpRequest();
+    Oauth2 oauth2 = new Oauth2.Builder(DrEditServlet.TRANSPORT,
+        DrEditServlet.JSON_FACTORY, null).build();
+    oauth2.userinfo().get().setFields(FieldMasks.USERINFO).buildHttpRequest();
+  }
+
+  /**
+   * Requests the given URL, which sets up TLS and leaves a connection to
+   * the host open for reuse. The response status is ignored. Skipped on the
+   * development server, which often runs offline.
+   */
+  private void warmUpConnection(String url, int timeoutMillis) {
+    try {
+      HttpResponse response = DrEditServlet.TRANSPORT.createRequestFactory()
+          .buildGetRequest(new GenericUrl(url))
+          .setConnectTimeout(timeoutMillis)
+          .setReadTimeout(timeoutMillis)
+          .setNumberOfRetries(0)
+          .setThrowExceptionOnExecuteError(false)
+          .execute();
+      // Reading the response to the end returns the connection for reuse.
+      response.ignore();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Can't connect to " + url, e);
+    }
+  }
+}
@@ -17,8 +17,6 @@ package com.google.drive.samples.dredit.model;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.ParentReference;
 import com.google.api.services.drive.model.File.Labels;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 import java.io.Reader;
 import java.util.List;
@@ -26,7 +24,7 @@ import java.util.List;
 /**
  * An object representing a File and its content, for use while interacting
  * with a DrEdit JavaScript client. Can be serialized and deserialized using
- * Gson.
+ * the Gson instance of {@link DrEditGson}.
  *
  * @author vicfryzel@google.com (Vic Fryzel)
  * @author nivco@google.com (Nicolas Garnier)
@@ -57,6 +55,23 @@ public class ClientFile {
    */
   public String content;
 
+  /**
+   * MD5 checksum of the content body. When saving with {@link #edits}, the
+   * checksum of the content once edited.
+   */
+  public String md5Checksum;
+
+  /**
+   * MD5 checksum of the content the {@link #edits} apply to.
+   */
+  public String base_md5;
+
+  /**
+   * Edits to apply to the content whose checksum is {@link #base_md5}, sent
+   * instead of the whole content body.
+   */
+  public List<Edit> edits;
+
   /**
    * Is the file editable.
    */
@@ -86,6 +101,7 @@ public class ClientFile {
     this.description = file.getDescription();
     this.mimeType = file.getMimeType();
     this.content = content;
+    this.md5Checksum = file.getMd5Checksum();
     this.labels = file.getLabels();
     this.editable = file.getEditable();
     this.parents = file.getParents();
@@ -97,14 +113,15 @@ public class ClientFile {
    * @param in Reader of JSON string to parse.
    */
   public ClientFile(Reader in) {
-    GsonBuilder builder = new GsonBuilder();
-    Gson gson = builder.create();
-    ClientFile other = gson.fromJson(in, ClientFile.class);
+    ClientFile other = DrEditGson.get().fromJson(in, ClientFile.class);
     this.resource_id = other.resource_id;
     this.title = other.title;
     this.description = other.description;
     this.mimeType = other.mimeType;
     this.content = other.content;
+    this.md5Checksum = other.md5Checksum;
+    this.base_md5 = other.base_md5;
+    this.edits = other.edits;
     this.labels = other.labels;
     this.editable = other.editable;
     this.parents = other.parents;
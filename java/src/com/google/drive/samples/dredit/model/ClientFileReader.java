@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit.model;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.InputStreamContent;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Incremental reader of the JSON representation of a {@link ClientFile} as
+ * sent by the DrEdit JavaScript client. Metadata fields are collected and
+ * bound by Gson, while the {@code content} field is decoded straight from the
+ * request into UTF-8 bytes that back the upload to Drive. The content is
+ * never materialized as a String.
+ *
+ * <p>Content up to a given size is buffered, so that the fields following it
+ * are known before it is uploaded. Larger content is streamed: the upload
+ * reads it from the rest of the request, and the fields following it, if
+ * any, are only read once the content has been read.
+ */
+public class ClientFileReader {
+  /**
+   * Name of the field holding the content body of the file.
+   */
+  private static final String CONTENT_FIELD = "content";
+
+  /**
+   * Number of characters buffered from the underlying reader at a time.
+   */
+  private static final int CHUNK_SIZE = 8192;
+
+  /**
+   * Charset content is encoded with when uploaded to Drive.
+   */
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /**
+   * Reader of the JSON representation.
+   */
+  private final Reader in;
+
+  /**
+   * Size in bytes of the largest content that is buffered rather than
+   * streamed.
+   */
+  private final int maxBufferedContent;
+
+  /**
+   * Characters read ahead from {@link #in}.
+   */
+  private final char[] buffer = new char[CHUNK_SIZE];
+
+  /**
+   * Position of the next character to consume in {@link #buffer}.
+   */
+  private int pos = 0;
+
+  /**
+   * Number of valid characters in {@link #buffer}.
+   */
+  private int limit = 0;
+
+  /**
+   * Metadata fields read so far, as a JSON object without its closing brace.
+   */
+  private final StringBuilder metadata = new StringBuilder("{");
+
+  /**
+   * Encoded content body, or the part of it not yet read if it is streamed;
+   * null if the JSON has no content.
+   */
+  private ContentBuffer content = null;
+
+  /**
+   * Encoder of the decoded content into {@link #content}.
+   */
+  private Writer contentWriter = null;
+
+  /**
+   * Whether the content string is still being read from {@link #in}.
+   */
+  private boolean contentOpen = false;
+
+  /**
+   * Whether the content is being read as a stream.
+   */
+  private boolean streaming = false;
+
+  /**
+   * Whether metadata fields follow a streamed content.
+   */
+  private boolean trailingMetadata = false;
+
+  /**
+   * Creates a new reader of the given JSON representation, buffering its
+   * whole content.
+   *
+   * @param in Reader of JSON string to parse.
+   */
+  public ClientFileReader(Reader in) {
+    this(in, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new reader of the given JSON representation.
+   *
+   * @param in Reader of JSON string to parse.
+   * @param maxBufferedContent Size in bytes of the largest content that is
+   *        buffered; larger content is streamed.
+   */
+  public ClientFileReader(Reader in, int maxBufferedContent) {
+    this.in = in;
+    this.maxBufferedContent = maxBufferedContent;
+  }
+
+  /**
+   * Reads the JSON representation. The returned ClientFile holds the
+   * metadata only; its content is available through {@link #getContent}.
+   * If the content is streamed, only the fields preceding it are read.
+   *
+   * @param gson Gson instance to bind metadata with.
+   * @return ClientFile holding the metadata of the file.
+   * @throws IOException Thrown if reading fails.
+   * @throws JsonParseException Thrown if the JSON is malformed.
+   */
+  public ClientFile read(Gson gson) throws IOException {
+    expect('{');
+    if (peekSignificant() == '}') {
+      next();
+    } else {
+      readFields();
+    }
+    return bind(gson);
+  }
+
+  /**
+   * Returns the metadata of all the fields of the JSON representation,
+   * including those following a streamed content.
+   *
+   * @param gson Gson instance to bind metadata with.
+   * @return ClientFile holding the metadata of the file.
+   * @throws IllegalStateException Thrown if the content was not read yet.
+   */
+  public ClientFile getMetadata(Gson gson) {
+    if (contentOpen) {
+      throw new IllegalStateException("Content was not read yet");
+    }
+    return bind(gson);
+  }
+
+  /**
+   * @return Whether the JSON representation contained a non-null content.
+   */
+  public boolean hasContent() {
+    return content != null;
+  }
+
+  /**
+   * @return Whether the content is streamed rather than buffered.
+   */
+  public boolean isContentStreamed() {
+    return contentOpen || streaming;
+  }
+
+  /**
+   * @return Whether metadata fields follow a streamed content, in which case
+   *         they were not read by {@link #read}. Only known once the content
+   *         has been read.
+   */
+  public boolean hasTrailingMetadata() {
+    return trailingMetadata;
+  }
+
+  /**
+   * @return Length in bytes of the encoded content, 0 if there is none, -1
+   *         if it is streamed.
+   */
+  public int getContentLength() {
+    if (content == null) {
+      return 0;
+    }
+    return isContentStreamed() ? -1 : content.size();
+  }
+
+  /**
+   * Returns the encoded content, reading the rest of a streamed content into
+   * memory.
+   *
+   * @return Encoded content, or null if there is none.
+   * @throws IOException Thrown if reading the content fails.
+   * @throws IllegalStateException Thrown if the content is being streamed.
+   */
+  public byte[] getContentBytes() throws IOException {
+    if (content == null) {
+      return null;
+    }
+    if (streaming) {
+      throw new IllegalStateException("Content is being streamed");
+    }
+    while (contentOpen) {
+      readContentChunk();
+    }
+    return content.toByteArray();
+  }
+
+  /**
+   * Returns the content as an upload stream for the Drive API. Buffered
+   * content supports retries, streamed content can only be read once.
+   *
+   * @param type MIME type of the content.
+   * @return Content to upload, or null if there is none.
+   */
+  public AbstractInputStreamContent getContent(String type) {
+    if (content == null) {
+      return null;
+    }
+    if (!contentOpen) {
+      return content.toHttpContent(type);
+    }
+    if (streaming) {
+      throw new IllegalStateException("Content is already streamed");
+    }
+    streaming = true;
+    return new InputStreamContent(type, new ContentStream());
+  }
+
+  /**
+   * Reads fields up to the end of the object, or up to a content that is too
+   * large to be buffered.
+   */
+  private void readFields() throws IOException {
+    while (true) {
+      String name = readName();
+      expect(':');
+      if (CONTENT_FIELD.equals(name)) {
+        if (!readContent()) {
+          // The fields following the content are read after it.
+          return;
+        }
+      } else {
+        if (metadata.length() > 1) {
+          metadata.append(',');
+        }
+        appendQuoted(metadata, name);
+        metadata.append(':');
+        copyValue(metadata);
+      }
+      char c = nextSignificant();
+      if (c == '}') {
+        return;
+      } else if (c != ',') {
+        throw syntaxError("Expected ',' or '}'");
+      }
+    }
+  }
+
+  /**
+   * Decodes the JSON string value of the content field into
+   * {@link #content}, up to {@link #maxBufferedContent} bytes.
+   *
+   * @return Whether the whole content was read.
+   */
+  private boolean readContent() throws IOException {
+    char c = peekSignificant();
+    if (c == 'n') {
+      copyValue(new StringBuilder());
+      content = null;
+      return true;
+    }
+    expect('"');
+    content = new ContentBuffer();
+    contentWriter = new OutputStreamWriter(content, CHARSET);
+    contentOpen = true;
+    while (contentOpen) {
+      if (content.size() > maxBufferedContent) {
+        return false;
+      }
+      decodeContentChunk();
+    }
+    return true;
+  }
+
+  /**
+   * Decodes the next chunk of a streamed content into {@link #content}, then
+   * reads the fields following the content once it ends.
+   */
+  private void readContentChunk() throws IOException {
+    decodeContentChunk();
+    if (!contentOpen) {
+      char c = nextSignificant();
+      if (c == ',') {
+        trailingMetadata = true;
+        readFields();
+      } else if (c != '}') {
+        throw syntaxError("Expected ',' or '}'");
+      }
+    }
+  }
+
+  /**
+   * Decodes up to one chunk of the content string into {@link #content}.
+   */
+  private void decodeContentChunk() throws IOException {
+    char[] decoded = new char[CHUNK_SIZE];
+    int count = 0;
+    while (count < decoded.length) {
+      char c = next();
+      if (c == '"') {
+        contentOpen = false;
+        break;
+      }
+      if (c == '\\') {
+        c = readEscaped();
+      }
+      decoded[count++] = c;
+    }
+    contentWriter.write(decoded, 0, count);
+    contentWriter.flush();
+  }
+
+  /**
+   * Binds the metadata fields read so far.
+   */
+  private ClientFile bind(Gson gson) {
+    ClientFile file = gson.fromJson(metadata + "}", ClientFile.class);
+    file.content = null;
+    return file;
+  }
+
+  /**
+   * Reads a field name.
+   */
+  private String readName() throws IOException {
+    expect('"');
+    StringBuilder name = new StringBuilder();
+    char c;
+    while ((c = next()) != '"') {
+      if (c == '\\') {
+        c = readEscaped();
+      }
+      name.append(c);
+    }
+    return name.toString();
+  }
+
+  /**
+   * Decodes an escape sequence whose backslash was just consumed.
+   */
+  private char readEscaped() throws IOException {
+    char c = next();
+    switch (c) {
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(next(), 16);
+          if (digit == -1) {
+            throw syntaxError("Malformed unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      default:
+        return c;
+    }
+  }
+
+  /**
+   * Copies the next JSON value verbatim to the given builder.
+   */
+  private void copyValue(StringBuilder out) throws IOException {
+    char c = peekSignificant();
+    if (c == '"') {
+      copyString(out);
+      return;
+    }
+    if (c == '{' || c == '[') {
+      int depth = 0;
+      do {
+        c = peek();
+        if (c == '"') {
+          copyString(out);
+          continue;
+        }
+        next();
+        out.append(c);
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
+        }
+      } while (depth > 0);
+      return;
+    }
+    // Literal: number, true, false or null.
+    while (true) {
+      c = peek();
+      if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+        return;
+      }
+      out.append(next());
+    }
+  }
+
+  /**
+   * Copies the next JSON string, including quotes and escapes, verbatim to
+   * the given builder.
+   */
+  private void copyString(StringBuilder out) throws IOException {
+    out.append(next());
+    char c;
+    while ((c = next()) != '"') {
+      out.append(c);
+      if (c == '\\') {
+        out.append(next());
+      }
+    }
+    out.append(c);
+  }
+
+  /**
+   * Appends the given name to the builder as a JSON string.
+   */
+  private static void appendQuoted(StringBuilder out, String name) {
+    out.append('"');
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\');
+      }
+      out.append(c);
+    }
+    out.append('"');
+  }
+
+  /**
+   * Consumes the next non-whitespace character and checks it is the given
+   * one.
+   */
+  private void expect(char expected) throws IOException {
+    if (nextSignificant() != expected) {
+      throw syntaxError("Expected '" + expected + "'");
+    }
+  }
+
+  /**
+   * Consumes and returns the next non-whitespace character.
+   */
+  private char nextSignificant() throws IOException {
+    peekSignificant();
+    return next();
+  }
+
+  /**
+   * Skips whitespace and returns the next character without consuming it.
+   */
+  private char peekSignificant() throws IOException {
+    char c;
+    while (Character.isWhitespace(c = peek())) {
+      pos++;
+    }
+    return c;
+  }
+
+  /**
+   * Consumes and returns the next character.
+   */
+  private char next() throws IOException {
+    char c = peek();
+    pos++;
+    return c;
+  }
+
+  /**
+   * Returns the next character without consuming it.
+   */
+  private char peek() throws IOException {
+    if (pos == limit) {
+      limit = in.read(buffer);
+      pos = 0;
+      if (limit == -1) {
+        limit = 0;
+        throw syntaxError("Unexpected end of input");
+      }
+    }
+    return buffer[pos];
+  }
+
+  private JsonParseException syntaxError(String message) {
+    return new JsonParseException(message + " in ClientFile JSON");
+  }
+
+  /**
+   * Stream of a content too large to be buffered, decoded from the request
+   * as it is read. Only one chunk of it is held at a time.
+   */
+  private class ContentStream extends InputStream {
+    private int offset = 0;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (offset == content.size()) {
+        if (!contentOpen) {
+          return -1;
+        }
+        content.reset();
+        offset = 0;
+        readContentChunk();
+      }
+      int count = content.copyTo(offset, b, off, len);
+      offset += count;
+      return count;
+    }
+  }
+
+  /**
+   * Byte buffer exposing its backing array as HTTP content without copying.
+   */
+  private static class ContentBuffer extends ByteArrayOutputStream {
+    ContentBuffer() {
+      super(CHUNK_SIZE);
+    }
+
+    AbstractInputStreamContent toHttpContent(String type) {
+      return new ByteArrayContent(type, buf, 0, count);
+    }
+
+    /**
+     * Returns the buffered bytes, trimming the backing array to them once so
+     * that later calls and the HTTP content share it.
+     */
+    @Override
+    public synchronized byte[] toByteArray() {
+      if (buf.length != count) {
+        buf = Arrays.copyOf(buf, count);
+      }
+      return buf;
+    }
+
+    int copyTo(int offset, byte[] b, int off, int len) {
+      int count = Math.min(len, this.count - offset);
+      System.arraycopy(buf, offset, b, off, count);
+      return count;
+    }
+  }
+}
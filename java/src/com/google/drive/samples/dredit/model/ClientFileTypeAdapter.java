@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit.model;
+
+import com.google.api.services.drive.model.File.Labels;
+import com.google.api.services.drive.model.ParentReference;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gson type adapter binding {@link ClientFile} field by field. Only the
+ * Drive model types it embeds, labels and parents, are bound through
+ * Gson's own adapters. Null fields are omitted like Gson does by default.
+ */
+public class ClientFileTypeAdapter extends TypeAdapter<ClientFile> {
+  /**
+   * Adapter of the labels of the file.
+   */
+  private final TypeAdapter<Labels> labelsAdapter;
+
+  /**
+   * Adapter of the parents of the file.
+   */
+  private final TypeAdapter<List<ParentReference>> parentsAdapter;
+
+  /**
+   * Creates a new adapter.
+   *
+   * @param gson Gson instance to get the adapters of embedded types from.
+   */
+  public ClientFileTypeAdapter(Gson gson) {
+    this.labelsAdapter = gson.getAdapter(Labels.class);
+    this.parentsAdapter =
+        gson.getAdapter(new TypeToken<List<ParentReference>>() {});
+  }
+
+  @Override
+  public void write(JsonWriter out, ClientFile file) throws IOException {
+    if (file == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    writeString(out, "resource_id", file.resource_id);
+    writeString(out, "title", file.title);
+    writeString(out, "description", file.description);
+    writeString(out, "mimeType", file.mimeType);
+    writeString(out, "content", file.content);
+    writeString(out, "md5Checksum", file.md5Checksum);
+    writeString(out, "base_md5", file.base_md5);
+    if (file.edits != null) {
+      out.name("edits");
+      writeEdits(out, file.edits);
+    }
+    out.name("editable").value(file.editable);
+    if (file.labels != null) {
+      out.name("labels");
+      labelsAdapter.write(out, file.labels);
+    }
+    if (file.parents != null) {
+      out.name("parents");
+      parentsAdapter.write(out, file.parents);
+    }
+    out.endObject();
+  }
+
+  @Override
+  public ClientFile read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    ClientFile file = new ClientFile();
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+      } else if (name.equals("resource_id")) {
+        file.resource_id = in.nextString();
+      } else if (name.equals("title")) {
+        file.title = in.nextString();
+      } else if (name.equals("description")) {
+        file.description = in.nextString();
+      } else if (name.equals("mimeType")) {
+        file.mimeType = in.nextString();
+      } else if (name.equals("content")) {
+        file.content = in.nextString();
+      } else if (name.equals("md5Checksum")) {
+        file.md5Checksum = in.nextString();
+      } else if (name.equals("base_md5")) {
+        file.base_md5 = in.nextString();
+      } else if (name.equals("edits")) {
+        file.edits = readEdits(in);
+      } else if (name.equals("editable")) {
+        file.editable = in.nextBoolean();
+      } else if (name.equals("labels")) {
+        file.labels = labelsAdapter.read(in);
+      } else if (name.equals("parents")) {
+        file.parents = parentsAdapter.read(in);
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return file;
+  }
+
+  private static void writeEdits(JsonWriter out, List<Edit> edits)
+      throws IOException {
+    out.beginArray();
+    for (Edit edit : edits) {
+      out.beginObject();
+      out.name("offset").value(edit.offset);
+      out.name("delete").value(edit.delete);
+      writeString(out, "insert", edit.insert);
+      out.endObject();
+    }
+    out.endArray();
+  }
+
+  private static List<Edit> readEdits(JsonReader in) throws IOException {
+    List<Edit> edits = new ArrayList<Edit>();
+    in.beginArray();
+    while (in.hasNext()) {
+      Edit edit = new Edit();
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+        } else if (name.equals("offset")) {
+          edit.offset = in.nextInt();
+        } else if (name.equals("delete")) {
+          edit.delete = in.nextInt();
+        } else if (name.equals("insert")) {
+          edit.insert = in.nextString();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      edits.add(edit);
+    }
+    in.endArray();
+    return edits;
+  }
+
+  private static void writeString(JsonWriter out, String name, String value)
+      throws IOException {
+    if (value != null) {
+      out.name(name).value(value);
+    }
+  }
+}
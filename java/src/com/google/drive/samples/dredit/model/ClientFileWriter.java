@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit.model;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the JSON representation of a {@link ClientFile} whose content is
+ * read from a stream. The metadata is serialized first, then the content is
+ * JSON-escaped straight into the output in fixed-size chunks so that the
+ * file body is never held in memory as a whole.
+ */
+public class ClientFileWriter {
+  /**
+   * Number of characters read from the content stream at a time.
+   */
+  public static final int CHUNK_SIZE = 8192;
+
+  /**
+   * Charset used to decode file content. DrEdit only handles text files.
+   */
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /**
+   * Escape sequences for characters that may not appear literally in a JSON
+   * string. Mirrors the HTML-safe escaping Gson applies by default.
+   */
+  private static final String[] REPLACEMENTS = new String[128];
+  static {
+    for (int i = 0; i <= 0x1f; i++) {
+      REPLACEMENTS[i] = String.format("\\u%04x", i);
+    }
+    REPLACEMENTS['"'] = "\\\"";
+    REPLACEMENTS['\\'] = "\\\\";
+    REPLACEMENTS['\t'] = "\\t";
+    REPLACEMENTS['\b'] = "\\b";
+    REPLACEMENTS['\n'] = "\\n";
+    REPLACEMENTS['\r'] = "\\r";
+    REPLACEMENTS['\f'] = "\\f";
+    REPLACEMENTS['<'] = "\\u003c";
+    REPLACEMENTS['>'] = "\\u003e";
+    REPLACEMENTS['&'] = "\\u0026";
+    REPLACEMENTS['='] = "\\u003d";
+    REPLACEMENTS['\''] = "\\u0027";
+  }
+
+  /**
+   * Gson instance used to serialize the metadata of the file.
+   */
+  private final Gson gson;
+
+  /**
+   * Creates a new writer serializing metadata with the given Gson instance.
+   *
+   * @param gson Gson instance to serialize metadata with.
+   */
+  public ClientFileWriter(Gson gson) {
+    this.gson = gson;
+  }
+
+  /**
+   * Writes the given file as JSON, reading its content from the given stream.
+   * The {@code content} field of {@code file} is ignored.
+   *
+   * @param file Metadata of the file to write.
+   * @param content Stream of the file content, or null for an empty file.
+   * @param out Writer to write JSON to.
+   * @throws IOException Thrown if reading the content or writing fails.
+   */
+  public void write(ClientFile file, InputStream content, Writer out)
+      throws IOException {
+    String savedContent = file.content;
+    file.content = null;
+    String metadata;
+    try {
+      metadata = gson.toJson(file);
+    } finally {
+      file.content = savedContent;
+    }
+    // Strip the closing brace so the content can be appended as the last
+    // field of the object.
+    out.write(metadata, 0, metadata.length() - 1);
+    if (metadata.length() > 2) {
+      out.write(',');
+    }
+    out.write("\"content\":\"");
+    if (content != null) {
+      writeEscaped(new InputStreamReader(content, CHARSET), out);
+    }
+    out.write("\"}");
+  }
+
+  /**
+   * Copies characters from the given reader to the given writer, escaping
+   * them as the body of a JSON string.
+   *
+   * @param in Reader to copy characters from.
+   * @param out Writer to copy characters to.
+   * @throws IOException Thrown if reading or writing fails.
+   */
+  static void writeEscaped(Reader in, Writer out) throws IOException {
+    char[] buffer = new char[CHUNK_SIZE];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      int last = 0;
+      for (int i = 0; i < read; i++) {
+        char c = buffer[i];
+        String replacement;
+        if (c < 128) {
+          replacement = REPLACEMENTS[c];
+        } else if (c == '\u2028') {
+          replacement = "\\u2028";
+        } else if (c == '\u2029') {
+          replacement = "\\u2029";
+        } else {
+          replacement = null;
+        }
+        if (replacement != null) {
+          out.write(buffer, last, i - last);
+          out.write(replacement);
+          last = i + 1;
+        }
+      }
+      out.write(buffer, last, read - last);
+    }
+  }
+}
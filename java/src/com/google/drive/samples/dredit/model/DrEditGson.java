@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Holder of the Gson instance used to serialize and deserialize the JSON
+ * exchanged with the DrEdit JavaScript client. Gson instances are
+ * thread-safe, so a single one is shared by all requests. Hand-written type
+ * adapters are registered for {@link ClientFile} and {@link State} so that
+ * they are bound without reflection.
+ */
+public final class DrEditGson {
+  /**
+   * The shared Gson instance.
+   */
+  private static final Gson GSON = new GsonBuilder()
+      .registerTypeAdapterFactory(new TypeAdapterFactory() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+          if (type.getRawType() == ClientFile.class) {
+            return (TypeAdapter<T>) new ClientFileTypeAdapter(gson);
+          }
+          return null;
+        }
+      })
+      .registerTypeAdapter(State.class, new StateTypeAdapter())
+      .create();
+
+  private DrEditGson() {}
+
+  /**
+   * @return The shared Gson instance.
+   */
+  public static Gson get() {
+    return GSON;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit.model;
+
+import java.util.List;
+
+/**
+ * An edit operation sent by the DrEdit JavaScript client to save a file by
+ * difference: replaces {@code delete} characters at {@code offset} with
+ * {@code insert}. Offsets count UTF-16 code units, like JavaScript string
+ * indices, and apply to the text as left by the previous edit.
+ */
+public class Edit {
+  /**
+   * Offset of the first character to replace.
+   */
+  public int offset;
+
+  /**
+   * Number of characters to remove.
+   */
+  public int delete;
+
+  /**
+   * Text to insert, or null to insert nothing.
+   */
+  public String insert;
+
+  /**
+   * Empty constructor required by Gson.
+   */
+  public Edit() {}
+
+  /**
+   * Applies the given edits to the given text, in order.
+   *
+   * @param text Text to edit.
+   * @param edits Edits to apply.
+   * @return The edited text.
+   * @throws IllegalArgumentException Thrown if an edit is out of the bounds
+   *         of the text.
+   */
+  public static String apply(String text, List<Edit> edits) {
+    StringBuilder result = new StringBuilder(text);
+    for (Edit edit : edits) {
+      // Compared without adding offset and delete, which could overflow.
+      if (edit.offset < 0 || edit.delete < 0
+          || edit.delete > result.length() - edit.offset) {
+        throw new IllegalArgumentException("Edit out of bounds at offset "
+            + edit.offset);
+      }
+      result.replace(edit.offset, edit.offset + edit.delete,
+          edit.insert != null ? edit.insert : "");
+    }
+    return result.toString();
+  }
+}
@@ -14,9 +14,6 @@
 
 package com.google.drive.samples.dredit.model;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import java.util.Collection;
 
 /**
@@ -53,9 +50,7 @@ public class State {
    * @param json Serialized representation of a State.
    */
   public State(String json) {
-    GsonBuilder builder = new GsonBuilder();
-    Gson gson = builder.create();
-    State other = gson.fromJson(json, State.class);
+    State other = DrEditGson.get().fromJson(json, State.class);
     this.action = other.action;
     this.ids = other.ids;
     this.folderId = other.folderId;
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.drive.samples.dredit.model;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Gson type adapter binding {@link State} field by field. Null fields are
+ * omitted like Gson does by default.
+ */
+public class StateTypeAdapter extends TypeAdapter<State> {
+  @Override
+  public void write(JsonWriter out, State state) throws IOException {
+    if (state == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    if (state.action != null) {
+      out.name("action").value(state.action);
+    }
+    if (state.ids != null) {
+      out.name("ids").beginArray();
+      for (String id : state.ids) {
+        if (id != null) {
+          out.value(id);
+        } else {
+          out.nullValue();
+        }
+      }
+      out.endArray();
+    }
+    if (state.folderId != null) {
+      out.name("folderId").value(state.folderId);
+    }
+    out.endObject();
+  }
+
+  @Override
+  public State read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    State state = new State();
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+      } else if (name.equals("action")) {
+        state.action = in.nextString();
+      } else if (name.equals("ids")) {
+        state.ids = readIds(in);
+      } else if (name.equals("folderId")) {
+        state.folderId = in.nextString();
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return state;
+  }
+
+  private static Collection<String> readIds(JsonReader in) throws IOException {
+    Collection<String> ids = new ArrayList<String>();
+    in.beginArray();
+    while (in.hasNext()) {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        ids.add(null);
+      } else {
+        ids.add(in.nextString());
+      }
+    }
+    in.endArray();
+    return ids;
+  }
+}